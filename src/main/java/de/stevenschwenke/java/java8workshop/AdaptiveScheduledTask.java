@@ -0,0 +1,267 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Runs a task again and again, like the ScheduledService in C_09_JavaFX - but the time between two runs adapts:
+ * <ul>
+ * <li>Runs never overlap. The next run is scheduled when the previous one has finished, a run that takes longer than
+ * the period is counted as overrun.</li>
+ * <li>A task that takes long gets more time between its runs: the delay is at least the average run time times the
+ * run time factor. With the default factor of 4, the task uses at most a fifth of a thread.</li>
+ * <li>When the machine is busy (system load per processor above 1), the delay grows with the load.</li>
+ * <li>After a failure, the delay doubles with every further failure up to the maximum backoff. After the maximum
+ * number of failures in a row, the task isn't run anymore. A successful run resets the backoff.</li>
+ * <li>Jitter: every delay is randomly made a bit longer or shorter, so that many instances started at the same time
+ * don't all run at the same time forever.</li>
+ * </ul>
+ * It runs on any ScheduledExecutorService, so it's usable for periodic jobs on a server as well.
+ */
+public class AdaptiveScheduledTask {
+
+    // weight of the newest run time in the average run time
+    private static final double SMOOTHING = 0.3;
+
+    private final ScheduledExecutorService executor;
+    private final Callable<?> task;
+
+    private volatile long periodMillis = 1000;
+    private volatile long maximumPeriodMillis = TimeUnit.MINUTES.toMillis(1);
+    private volatile long maximumBackoffMillis = TimeUnit.MINUTES.toMillis(5);
+    private volatile int maximumFailureCount = Integer.MAX_VALUE;
+    private volatile double runTimeFactor = 4;
+    private volatile double jitter = 0.1;
+    private volatile DoubleSupplier load = AdaptiveScheduledTask::systemLoadPerProcessor;
+
+    private boolean started;
+    private boolean cancelled;
+    private ScheduledFuture<?> next;
+
+    private volatile double averageRunMillis;
+    private volatile long currentDelayMillis;
+    private volatile int failuresInARow;
+    private volatile long runs;
+    private volatile long failures;
+    private volatile long overruns;
+    private volatile Throwable lastFailure;
+
+    /**
+     * @param executor runs the task. One thread is enough, runs of this task never overlap.
+     * @param task     task to run. Throwing an exception or error counts as failure.
+     */
+    public AdaptiveScheduledTask(ScheduledExecutorService executor, Callable<?> task) {
+        this.executor = executor;
+        this.task = task;
+    }
+
+    /**
+     * @param executor runs the task
+     * @param task     task to run. Throwing an exception or error counts as failure.
+     */
+    public AdaptiveScheduledTask(ScheduledExecutorService executor, Runnable task) {
+        this(executor, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * @param period delay between two runs if everything is fine. Default is one second.
+     * @param unit   unit of the period
+     */
+    public void setPeriod(long period, TimeUnit unit) {
+        this.periodMillis = unit.toMillis(period);
+    }
+
+    /**
+     * @param maximumPeriod the delay doesn't grow beyond this because of run time or load. Default is one minute.
+     * @param unit          unit of the period
+     */
+    public void setMaximumPeriod(long maximumPeriod, TimeUnit unit) {
+        this.maximumPeriodMillis = unit.toMillis(maximumPeriod);
+    }
+
+    /**
+     * @param maximumBackoff the delay doesn't grow beyond this because of failures. Default is five minutes.
+     * @param unit           unit of the backoff
+     */
+    public void setMaximumBackoff(long maximumBackoff, TimeUnit unit) {
+        this.maximumBackoffMillis = unit.toMillis(maximumBackoff);
+    }
+
+    /**
+     * @param maximumFailureCount number of failures in a row after which the task isn't run anymore
+     */
+    public void setMaximumFailureCount(int maximumFailureCount) {
+        this.maximumFailureCount = maximumFailureCount;
+    }
+
+    /**
+     * @param runTimeFactor the delay is at least the average run time times this factor, 0 to ignore the run time
+     */
+    public void setRunTimeFactor(double runTimeFactor) {
+        this.runTimeFactor = runTimeFactor;
+    }
+
+    /**
+     * @param jitter every delay is changed randomly by up to this fraction, 0.1 is +/- 10%. 0 for no jitter.
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("jitter has to be in [0, 1): " + jitter);
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param load load per processor, above 1 means busy. Negative values are ignored. Default is the system load
+     *             average of the operating system, which isn't available on all platforms.
+     */
+    public void setLoad(DoubleSupplier load) {
+        this.load = load;
+    }
+
+    private static double systemLoadPerProcessor() {
+        return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage()
+                / Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Runs the task right away and then again and again.
+     *
+     * @throws IllegalStateException if it has been started before
+     */
+    public synchronized void start() {
+        if (started) {
+            throw new IllegalStateException("Can only be started once");
+        }
+        started = true;
+        next = executor.schedule(this::run, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Doesn't start another run. A run that's running isn't interrupted.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (next != null) {
+            next.cancel(false);
+        }
+    }
+
+    /**
+     * @return true if started and more runs will follow: not cancelled, not stopped after too many failures and
+     * the executor accepted the next run
+     */
+    public synchronized boolean isRunning() {
+        return started && !cancelled;
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            task.call();
+        } catch (Throwable t) {
+            // Errors like AssertionError count as well, otherwise the task would silently stop.
+            failed = true;
+            lastFailure = t;
+            if (t instanceof InterruptedException) {
+                // for the executor, for example when it's shut down
+                Thread.currentThread().interrupt();
+            }
+        }
+        double runMillis = (System.nanoTime() - start) / 1e6;
+        synchronized (this) {
+            runs++;
+            averageRunMillis = runs == 1 ? runMillis : SMOOTHING * runMillis + (1 - SMOOTHING) * averageRunMillis;
+            if (runMillis > periodMillis) {
+                overruns++;
+            }
+            if (failed) {
+                failures++;
+                failuresInARow++;
+                if (failuresInARow >= maximumFailureCount) {
+                    cancelled = true;
+                }
+            } else {
+                failuresInARow = 0;
+            }
+            if (cancelled) {
+                return;
+            }
+            try {
+                currentDelayMillis = nextDelay();
+                next = executor.schedule(this::run, currentDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // for example, the executor has been shut down
+                cancelled = true;
+                lastFailure = e;
+            }
+        }
+    }
+
+    private long nextDelay() {
+        double delay;
+        if (failuresInARow > 0) {
+            // 2^30 times the period is more than enough, the shift must not overflow
+            delay = Math.min(maximumBackoffMillis, (double) periodMillis * (1L << Math.min(30, failuresInARow)));
+        } else {
+            delay = Math.max(periodMillis, averageRunMillis * runTimeFactor);
+            double currentLoad = load.getAsDouble();
+            if (currentLoad > 1) {
+                delay *= currentLoad;
+            }
+            delay = Math.min(maximumPeriodMillis, delay);
+        }
+        if (jitter > 0) {
+            delay *= 1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+        }
+        return Math.round(delay);
+    }
+
+    /**
+     * @return delay before the next run in milliseconds, 0 before the first run
+     */
+    public long getCurrentDelayMillis() {
+        return currentDelayMillis;
+    }
+
+    public double getAverageRunMillis() {
+        return averageRunMillis;
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return number of runs that took longer than the period
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * @return exception or error of the last failed run, null if no run failed yet
+     */
+    public Throwable getLastFailure() {
+        return lastFailure;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d runs, %d failures, %d overruns, average %.1f ms, next in %d ms", runs, failures,
+                overruns, averageRunMillis, currentDelayMillis);
+    }
+}
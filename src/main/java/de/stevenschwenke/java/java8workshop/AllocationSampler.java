@@ -0,0 +1,327 @@
+package de.stevenschwenke.java.java8workshop;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Finds out where an application allocates its memory, in the running application and without Mission Control, see
+ * C_11_MissionControl.
+ * <p>
+ * The Flight Recorder writes an event when a thread gets a new TLAB (a chunk of the heap only this thread allocates
+ * in) and when an object doesn't fit into a TLAB. These events are samples: the object in the event is the one that
+ * didn't fit, the size of the whole TLAB is counted for it. With enough samples, the classes and places that allocate
+ * the most show up at the top. The report lists the allocation sites - the first method outside the JDK - and flags
+ * boxed primitives like the Integers of a Stream&lt;Integer&gt;, see C_04_Streams.
+ * <p>
+ * {@link #heapHistogram(int)} shows what's on the heap right now, like "Heap Histogram" in Mission Control. See
+ * {@link HeapFootprint} for duplicate strings.
+ */
+public class AllocationSampler implements AutoCloseable {
+
+    private static final List<String> JDK_PACKAGES = Arrays.asList("java.", "javax.", "jdk.", "sun.", "com.sun.");
+    private static final List<String> BOXED = Arrays.asList("java.lang.Boolean", "java.lang.Byte",
+            "java.lang.Character", "java.lang.Short", "java.lang.Integer", "java.lang.Long", "java.lang.Float",
+            "java.lang.Double");
+
+    private final int topN;
+    private ScheduledExecutorService background;
+    private Recording current;
+    private boolean closed;
+
+    /**
+     * @param topN number of allocation sites in a report
+     */
+    public AllocationSampler(int topN) {
+        this.topN = topN;
+    }
+
+    /**
+     * Records the allocations while the workload runs. All threads are recorded, also the ones of a parallel stream.
+     */
+    public Report sample(Runnable workload) {
+        Recording recording = startRecording();
+        try {
+            workload.run();
+            recording.stop();
+        } catch (Throwable t) {
+            // otherwise the data of the recording stays in the repository
+            recording.close();
+            throw t;
+        }
+        return report(recording);
+    }
+
+    /**
+     * Reports the allocations periodically, for example to a log file. Every report covers one interval. If a report
+     * fails, the exception goes to the uncaught exception handler and the next reports still come.
+     *
+     * @param interval time between two reports
+     * @param reports  receives the reports, on a background thread
+     */
+    public synchronized void start(Duration interval, Consumer<Report> reports) {
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+        if (background != null) {
+            throw new IllegalStateException("Already started");
+        }
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "allocation-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        current = startRecording();
+        background.scheduleAtFixedRate(() -> report(reports), interval.toMillis(), interval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    // An exception or error would cancel all further runs of scheduleAtFixedRate(...), so none leaves this method.
+    private void report(Consumer<Report> reports) {
+        Recording finished;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            finished = current;
+            current = startRecording();
+        }
+        try {
+            finished.stop();
+            reports.accept(report(finished));
+        } catch (Throwable t) {
+            finished.close();
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+        }
+    }
+
+    /**
+     * Stops the periodic reports.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (background != null) {
+            background.shutdownNow();
+            background = null;
+        }
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    private static Recording startRecording() {
+        Recording recording = new Recording();
+        recording.setName("allocation-sampler");
+        recording.enable("jdk.ObjectAllocationInNewTLAB").withStackTrace();
+        recording.enable("jdk.ObjectAllocationOutsideTLAB").withStackTrace();
+        recording.start();
+        return recording;
+    }
+
+    private Report report(Recording recording) {
+        List<RecordedEvent> events;
+        try {
+            Path file = Files.createTempFile("allocations", ".jfr");
+            try {
+                recording.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            recording.close();
+        }
+
+        Map<String, Site> sites = new HashMap<>();
+        for (RecordedEvent event : events) {
+            String type = event.getEventType().getName();
+            long bytes;
+            if (type.equals("jdk.ObjectAllocationInNewTLAB")) {
+                bytes = event.getLong("tlabSize");
+            } else if (type.equals("jdk.ObjectAllocationOutsideTLAB")) {
+                bytes = event.getLong("allocationSize");
+            } else {
+                continue;
+            }
+            String className = event.getClass("objectClass").getName();
+            String frame = site(event.getStackTrace());
+            sites.computeIfAbsent(className + " " + frame, key -> new Site(className, frame)).add(bytes);
+        }
+        List<Site> sorted = new ArrayList<>(sites.values());
+        sorted.sort(Comparator.comparingLong(Site::getBytes).reversed());
+        long total = sorted.stream().mapToLong(Site::getBytes).sum();
+        return new Report(sorted.subList(0, Math.min(topN, sorted.size())), total, flags(sorted, total));
+    }
+
+    // The first frame outside the JDK is where the application allocates.
+    private static String site(RecordedStackTrace stackTrace) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return "(unknown)";
+        }
+        RecordedFrame site = stackTrace.getFrames().get(0);
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            String typeName = frame.getMethod().getType().getName();
+            if (JDK_PACKAGES.stream().noneMatch(typeName::startsWith)) {
+                site = frame;
+                break;
+            }
+        }
+        return site.getMethod().getType().getName() + "." + site.getMethod().getName() + ":"
+                + site.getLineNumber();
+    }
+
+    private static List<String> flags(List<Site> sites, long total) {
+        Map<String, Long> boxedBytes = sites.stream().filter(site -> BOXED.contains(site.className))
+                .collect(Collectors.groupingBy(Site::getClassName, Collectors.summingLong(Site::getBytes)));
+        List<String> flags = new ArrayList<>();
+        boxedBytes.forEach((className, bytes) -> {
+            if (total > 0 && bytes * 10 >= total) {
+                flags.add(String.format("%s is %d%% of the allocated bytes: boxed primitives, use primitive streams "
+                        + "like mapToInt(...) or primitive arrays", className, bytes * 100 / total));
+            }
+        });
+        return flags;
+    }
+
+    /**
+     * Classes with the most bytes on the heap, like "jcmd &lt;pid&gt; GC.class_histogram". Triggers a full garbage
+     * collection to count only live objects, so don't call it every second.
+     *
+     * @param topN number of classes
+     * @return one line per class: instances, bytes, class name. Boxed primitives are marked.
+     */
+    public static List<String> heapHistogram(int topN) {
+        String histogram;
+        try {
+            histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                    new Object[]{new String[0]}, new String[]{String[].class.getName()});
+        } catch (JMException e) {
+            throw new IllegalStateException("Heap histogram needs a HotSpot JVM", e);
+        }
+        // Lines look like "   1:    123456    7890123  java.lang.Integer (java.base@11)"
+        return Arrays.stream(histogram.split("\n"))
+                .map(String::trim)
+                .filter(line -> line.matches("\\d+:.*"))
+                .limit(topN)
+                .map(line -> {
+                    String[] columns = line.split("\\s+");
+                    String marker = BOXED.contains(columns[3]) ? "  <- boxed primitives" : "";
+                    return String.format("%12s instances %14s bytes  %s%s", columns[1], columns[2], columns[3],
+                            marker);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Sampled allocations of one class at one place.
+     */
+    public static final class Site {
+        private final String className;
+        private final String frame;
+        private long bytes;
+        private long samples;
+
+        Site(String className, String frame) {
+            this.className = className;
+            this.frame = frame;
+        }
+
+        void add(long bytes) {
+            this.bytes += bytes;
+            samples++;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * @return first method outside the JDK, with line number
+         */
+        public String getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return estimated bytes allocated
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,14d bytes %6d samples  %s at %s", bytes, samples, className, frame);
+        }
+    }
+
+    /**
+     * Top allocation sites of one sample.
+     */
+    public static final class Report {
+        private final List<Site> sites;
+        private final long totalBytes;
+        private final List<String> flags;
+
+        Report(List<Site> sites, long totalBytes, List<String> flags) {
+            this.sites = new ArrayList<>(sites);
+            this.totalBytes = totalBytes;
+            this.flags = flags;
+        }
+
+        public List<Site> getSites() {
+            return sites;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return overheads that are easy to avoid, for example boxed primitives
+         */
+        public List<String> getFlags() {
+            return flags;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(String.format("%,d bytes allocated (estimated)%n", totalBytes));
+            sites.forEach(site -> report.append(site).append(System.lineSeparator()));
+            flags.forEach(flag -> report.append("! ").append(flag).append(System.lineSeparator()));
+            return report.toString();
+        }
+    }
+}
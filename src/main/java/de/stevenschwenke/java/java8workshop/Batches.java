@@ -0,0 +1,306 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Groups the elements of a stream into batches, for example to write them to a database with one bulk insert per
+ * batch instead of one insert per element.
+ * <ul>
+ * <li>{@link #chunked(Stream, int)}: [1, 2, 3, 4, 5] in chunks of 2 is [1, 2], [3, 4], [5]</li>
+ * <li>{@link #windowed(Stream, int, int)}: [1, 2, 3, 4, 5] in windows of size 3 with step 1 is [1, 2, 3], [2, 3, 4],
+ * [3, 4, 5]</li>
+ * <li>{@link #forEachChunk(Stream, int, Consumer)}: like chunked, but reuses one array per thread instead of creating
+ * a new one for every chunk</li>
+ * </ul>
+ * Parallel streams work as well: when the source is split, the part in front borrows the elements it needs to fill
+ * its last batch from the part behind it. The batches are the same as in a sequential stream.
+ */
+public final class Batches {
+
+    // batch size when splitting a source that doesn't know the size of its parts
+    private static final int BATCH_UNIT = 1024;
+
+    private Batches() {
+        // only static methods
+    }
+
+    /**
+     * @param source elements to group
+     * @param size   number of elements per chunk, the last chunk can be smaller
+     * @param <T>    type of the elements
+     * @return stream of unmodifiable chunks
+     */
+    public static <T> Stream<List<T>> chunked(Stream<T> source, int size) {
+        return stream(source, new BatchSpliterator<>(source.spliterator(), size, size, true, false));
+    }
+
+    /**
+     * @param source elements to group
+     * @param size   number of elements per window, windows with fewer elements at the end are left out
+     * @param step   distance between the first elements of two windows
+     * @param <T>    type of the elements
+     * @return stream of unmodifiable windows
+     */
+    public static <T> Stream<List<T>> windowed(Stream<T> source, int size, int step) {
+        return stream(source, new BatchSpliterator<>(source.spliterator(), size, step, false, false));
+    }
+
+    /**
+     * Calls the action for every chunk. The list given to the action is only valid during the call, it's reused for
+     * the next chunk - don't keep it. That's what makes it fast: no new array for every chunk.
+     *
+     * @param source elements to group, may be parallel
+     * @param size   number of elements per chunk, the last chunk can be smaller
+     * @param action called for every chunk, in parallel if the source is parallel
+     * @param <T>    type of the elements
+     */
+    public static <T> void forEachChunk(Stream<T> source, int size, Consumer<? super List<T>> action) {
+        stream(source, new BatchSpliterator<>(source.spliterator(), size, size, true, true)).forEach(action);
+    }
+
+    private static <T> Stream<List<T>> stream(Stream<T> source, BatchSpliterator<T> spliterator) {
+        return StreamSupport.stream(spliterator, source.isParallel()).onClose(source::close);
+    }
+
+    /**
+     * Elements of this spliterator are head, then source, then tail. head and tail are elements taken from the
+     * source of a neighbour while splitting. Every spliterator starts with the first element of a batch.
+     */
+    private static final class BatchSpliterator<T> implements Spliterator<List<T>> {
+        private final int size;
+        private final int step;
+        private final boolean partial;
+        private final boolean reuse;
+
+        private Object[] head;
+        private int headIndex;
+        private final Spliterator<T> source;
+        private Object[] tail;
+        private int tailIndex;
+        private int batch;
+
+        // elements of the batch that's being filled, and elements to skip if step > size
+        private final Object[] buffer;
+        private int filled;
+        private int toSkip;
+        private boolean started;
+        private final BufferView view = new BufferView();
+
+        BatchSpliterator(Spliterator<T> source, int size, int step, boolean partial, boolean reuse) {
+            this(new Object[0], source, new Object[0], size, step, partial, reuse);
+            if (size < 1 || step < 1) {
+                throw new IllegalArgumentException("size and step have to be positive");
+            }
+        }
+
+        private BatchSpliterator(Object[] head, Spliterator<T> source, Object[] tail, int size, int step,
+                                 boolean partial, boolean reuse) {
+            this.head = head;
+            this.source = source;
+            this.tail = tail;
+            this.size = size;
+            this.step = step;
+            this.partial = partial;
+            this.reuse = reuse;
+            this.buffer = new Object[size];
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super List<T>> action) {
+            started = true;
+            Object[] element = new Object[1];
+            while (next(element)) {
+                if (add(element[0], action)) {
+                    return true;
+                }
+            }
+            return emitPartial(action);
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super List<T>> action) {
+            started = true;
+            while (headIndex < head.length) {
+                add(head[headIndex++], action);
+            }
+            source.forEachRemaining(element -> add(element, action));
+            while (tailIndex < tail.length) {
+                add(tail[tailIndex++], action);
+            }
+            emitPartial(action);
+        }
+
+        private boolean next(Object[] element) {
+            if (headIndex < head.length) {
+                element[0] = head[headIndex++];
+                return true;
+            }
+            if (source.tryAdvance(e -> element[0] = e)) {
+                return true;
+            }
+            if (tailIndex < tail.length) {
+                element[0] = tail[tailIndex++];
+                return true;
+            }
+            return false;
+        }
+
+        // returns true if a batch has been emitted
+        private boolean add(Object element, Consumer<? super List<T>> action) {
+            if (toSkip > 0) {
+                toSkip--;
+                return false;
+            }
+            buffer[filled++] = element;
+            if (filled < size) {
+                return false;
+            }
+            action.accept(batch(size));
+            if (step >= size) {
+                filled = 0;
+                toSkip = step - size;
+            } else {
+                System.arraycopy(buffer, step, buffer, 0, size - step);
+                filled = size - step;
+            }
+            return true;
+        }
+
+        private boolean emitPartial(Consumer<? super List<T>> action) {
+            if (!partial || filled == 0) {
+                return false;
+            }
+            List<T> last = batch(filled);
+            filled = 0;
+            action.accept(last);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<T> batch(int length) {
+            if (reuse) {
+                view.length = length;
+                return view;
+            }
+            return Collections.unmodifiableList(Arrays.asList((T[]) Arrays.copyOf(buffer, length)));
+        }
+
+        /**
+         * The one list given to the action of forEachChunk(...) again and again.
+         */
+        private final class BufferView extends AbstractList<T> {
+            private int length;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T get(int index) {
+                if (index >= length) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", size: " + length);
+                }
+                return (T) buffer[index];
+            }
+
+            @Override
+            public int size() {
+                return length;
+            }
+        }
+
+        @Override
+        public Spliterator<List<T>> trySplit() {
+            if (started) {
+                return null;
+            }
+            // The elements of the prefix: split off the source if the parts know their size. Otherwise they are
+            // copied into an array, like the JDK does for sources without a size.
+            Spliterator<T> prefixSource;
+            long prefixSize;
+            if (source.hasCharacteristics(SUBSIZED)) {
+                prefixSource = source.trySplit();
+                if (prefixSource == null) {
+                    return null;
+                }
+                prefixSize = prefixSource.getExactSizeIfKnown();
+                if (prefixSize < 0) {
+                    Object[] copied = copy(prefixSource, Integer.MAX_VALUE - 8);
+                    prefixSource = arraySpliterator(copied);
+                    prefixSize = copied.length;
+                }
+            } else {
+                batch += BATCH_UNIT;
+                Object[] copied = copy(source, (int) Math.min(Integer.MAX_VALUE - 8L, (long) batch * step));
+                prefixSource = arraySpliterator(copied);
+                prefixSize = copied.length;
+            }
+            long p = head.length + prefixSize;
+            if (p == 0) {
+                return null;
+            }
+
+            // p is the position of the first element of the suffix, counted from the start of this spliterator. The
+            // prefix gets all batches that start before p and borrows the elements it needs to fill the last of
+            // them. The suffix starts with the next batch.
+            long lastStart = (p - 1) / step * step;
+            long nextStart = lastStart + step;
+            int extra = (int) Math.max(0, lastStart + size - p);
+            int skip = (int) (nextStart - p);
+            Object[] borrowed = take(Math.max(extra, skip));
+
+            Object[] prefixHead = head;
+            Object[] prefixTail = Arrays.copyOf(borrowed, Math.min(extra, borrowed.length));
+            head = borrowed.length > skip ? Arrays.copyOfRange(borrowed, skip, borrowed.length) : new Object[0];
+            return new BatchSpliterator<>(prefixHead, prefixSource, prefixTail, size, step, partial, reuse);
+        }
+
+        private static Object[] copy(Spliterator<?> from, int max) {
+            Object[] copied = new Object[Math.min(max, BATCH_UNIT)];
+            int count = 0;
+            Object[] element = new Object[1];
+            while (count < max && from.tryAdvance(e -> element[0] = e)) {
+                if (count == copied.length) {
+                    copied = Arrays.copyOf(copied, (int) Math.min(max, copied.length * 2L));
+                }
+                copied[count++] = element[0];
+            }
+            return Arrays.copyOf(copied, count);
+        }
+
+        // takes the next elements from the source, then from the tail
+        private Object[] take(int n) {
+            Object[] result = new Object[n];
+            int count = 0;
+            Object[] element = new Object[1];
+            while (count < n && source.tryAdvance(e -> element[0] = e)) {
+                result[count++] = element[0];
+            }
+            while (count < n && tailIndex < tail.length) {
+                result[count++] = tail[tailIndex++];
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        private static <T> Spliterator<T> arraySpliterator(Object[] elements) {
+            @SuppressWarnings("unchecked")
+            Spliterator<T> spliterator = (Spliterator<T>) Arrays.spliterator(elements);
+            return spliterator;
+        }
+
+        @Override
+        public long estimateSize() {
+            long elements = head.length - headIndex + source.estimateSize() + tail.length - tailIndex;
+            return elements < 0 ? Long.MAX_VALUE : elements / step + 1;
+        }
+
+        @Override
+        public int characteristics() {
+            return (source.characteristics() & ORDERED) | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package de.stevenschwenke.java.java8workshop;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleScriptContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Facade for evaluating the same scripts many times, for example with Nashorn.
+ * <p>
+ * Creating a {@link ScriptEngine} and parsing a script take much longer than running the script. Here, every thread
+ * gets its own engine (engines like Nashorn are not thread-safe) and every script is compiled only once per thread.
+ * <p>
+ * Every compiled script also gets its own global scope ({@link Bindings}), so functions and global variables of one
+ * script are not overwritten by another one. The scope is created together with the compiled script and kept, because
+ * new {@link Bindings} for every evaluation would make Nashorn create a whole new global scope each time. Variables
+ * are put into the scope of the script for one evaluation only, globals of the script with the same names are
+ * restored afterwards.
+ * <p>
+ * Evaluations are recorded for the Flight Recorder, see {@link FlightEvents}.
+ */
+public class CachedScriptEngine {
+
+    private static final int MAX_CACHED_SCRIPTS = 256;
+
+    private final String engineName;
+    private final ScriptEngineManager manager;
+    private final ThreadLocal<Slot> slots = ThreadLocal.withInitial(this::createSlot);
+
+    /**
+     * @param engineName name of the engine, for example "nashorn"
+     */
+    public CachedScriptEngine(String engineName) {
+        this.engineName = engineName;
+        this.manager = new ScriptEngineManager();
+        if (manager.getEngineByName(engineName) == null) {
+            throw new IllegalStateException("No script engine named " + engineName);
+        }
+    }
+
+    /**
+     * @param script source of the script
+     * @return result of the script
+     * @throws ScriptException if the script is broken
+     */
+    public Object eval(String script) throws ScriptException {
+        Object event = FlightEvents.beginScriptEvaluation();
+        try {
+            Script compiled = slots.get().compile(script);
+            return compiled.compiled.eval(compiled.context);
+        } finally {
+            FlightEvents.commitScriptEvaluation(event, engineName, script, 0);
+        }
+    }
+
+    /**
+     * @param script    source of the script
+     * @param variables available in the script while it runs
+     * @return result of the script
+     * @throws ScriptException if the script is broken
+     */
+    public Object eval(String script, Map<String, ?> variables) throws ScriptException {
+        Script compiled = slots.get().compile(script);
+        Bindings bindings = compiled.context.getBindings(ScriptContext.ENGINE_SCOPE);
+        // The scope is kept, so globals of the script with the same names as the variables are restored afterwards.
+        Map<String, Object> previous = new HashMap<>();
+        for (String name : variables.keySet()) {
+            if (bindings.containsKey(name)) {
+                previous.put(name, bindings.get(name));
+            }
+        }
+        bindings.putAll(variables);
+        Object event = FlightEvents.beginScriptEvaluation();
+        try {
+            return compiled.compiled.eval(compiled.context);
+        } finally {
+            FlightEvents.commitScriptEvaluation(event, engineName, script, variables.size());
+            for (String name : variables.keySet()) {
+                if (previous.containsKey(name)) {
+                    bindings.put(name, previous.get(name));
+                } else {
+                    bindings.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates one script with many different variables. The script is compiled only once.
+     *
+     * @param script    source of the script
+     * @param variables one map of variables per evaluation
+     * @return one result per evaluation
+     * @throws ScriptException if the script is broken
+     */
+    public List<Object> evalAll(String script, List<? extends Map<String, ?>> variables) throws ScriptException {
+        List<Object> results = new ArrayList<>(variables.size());
+        for (Map<String, ?> v : variables) {
+            results.add(eval(script, v));
+        }
+        return results;
+    }
+
+    /**
+     * Calls a function defined in the given script many times. The script is evaluated only once per thread.
+     *
+     * @param script    source of the script that defines the function
+     * @param function  name of the function
+     * @param arguments one array of arguments per call
+     * @return one result per call
+     * @throws ScriptException       if the script is broken
+     * @throws NoSuchMethodException if the script doesn't define the function
+     */
+    public List<Object> invokeAll(String script, String function, List<Object[]> arguments)
+            throws ScriptException, NoSuchMethodException {
+        Slot slot = slots.get();
+        if (!(slot.engine instanceof Invocable)) {
+            throw new UnsupportedOperationException(engineName + " can't invoke functions");
+        }
+        Script compiled = slot.compile(script);
+        if (!compiled.defined) {
+            compiled.compiled.eval(compiled.context);
+            compiled.defined = true;
+        }
+        // Invocable calls functions in the context of the engine, so the context of the script is set while calling.
+        Invocable invocable = (Invocable) slot.engine;
+        ScriptContext engineContext = slot.engine.getContext();
+        slot.engine.setContext(compiled.context);
+        try {
+            List<Object> results = new ArrayList<>(arguments.size());
+            for (Object[] args : arguments) {
+                results.add(invocable.invokeFunction(function, args));
+            }
+            return results;
+        } finally {
+            slot.engine.setContext(engineContext);
+        }
+    }
+
+    private Slot createSlot() {
+        return new Slot(manager.getEngineByName(engineName));
+    }
+
+    /**
+     * Engine and compiled scripts of one thread.
+     */
+    private static class Slot {
+        private final ScriptEngine engine;
+
+        // Least recently used scripts are thrown out if there are too many. The key is the source itself, so a
+        // collision of hash codes can't return the wrong script.
+        private final Map<String, Script> compiled = new LinkedHashMap<String, Script>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+                return size() > MAX_CACHED_SCRIPTS;
+            }
+        };
+
+        Slot(ScriptEngine engine) {
+            this.engine = engine;
+        }
+
+        Script compile(String script) throws ScriptException {
+            Script result = compiled.get(script);
+            if (result == null) {
+                result = new Script(engine instanceof Compilable
+                        ? ((Compilable) engine).compile(script)
+                        : new InterpretedScript(engine, script), context());
+                compiled.put(script, result);
+            }
+            return result;
+        }
+
+        // own global scope, the global bindings of the manager are shared
+        private ScriptContext context() {
+            ScriptContext context = new SimpleScriptContext();
+            context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+            context.setBindings(engine.getBindings(ScriptContext.GLOBAL_SCOPE), ScriptContext.GLOBAL_SCOPE);
+            return context;
+        }
+    }
+
+    /**
+     * Compiled script with its global scope.
+     */
+    private static class Script {
+        private final CompiledScript compiled;
+        private final ScriptContext context;
+        // true if the script has been evaluated to define its functions
+        private boolean defined;
+
+        Script(CompiledScript compiled, ScriptContext context) {
+            this.compiled = compiled;
+            this.context = context;
+        }
+    }
+
+    /**
+     * For engines that can't compile: evaluates the source every time.
+     */
+    private static class InterpretedScript extends CompiledScript {
+        private final ScriptEngine engine;
+        private final String script;
+
+        InterpretedScript(ScriptEngine engine, String script) {
+            this.engine = engine;
+            this.script = script;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            return engine.eval(script, context);
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.stream.Collectors;
+
+/**
+ * Gives access to all {@link Change} annotations without reflection.
+ * <p>
+ * {@link Change} doesn't even have a runtime retention, so {@code getAnnotationsByType(...)} wouldn't find anything.
+ * Instead, {@link ChangeProcessor} collects all of them while compiling and generates an {@link Index}. Here, these
+ * indexes are loaded once and queried by class and member name.
+ */
+public final class ChangeHistory {
+
+    private static volatile List<Entry> entries;
+
+    private ChangeHistory() {
+        // only static lookups
+    }
+
+    /**
+     * @param type annotated class
+     * @return all changes of the class itself and all of its members
+     */
+    public static List<Entry> forClass(Class<?> type) {
+        return forClass(type.getName());
+    }
+
+    /**
+     * @param className binary name of the annotated class
+     * @return all changes of the class itself and all of its members
+     */
+    public static List<Entry> forClass(String className) {
+        return entries().stream()
+                .filter(e -> e.getClassName().equals(className))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param type       annotated class
+     * @param memberName name of a method, field or "&lt;init&gt;" for constructors
+     * @return all changes of the member
+     */
+    public static List<Entry> forMember(Class<?> type, String memberName) {
+        return forClass(type).stream()
+                .filter(e -> memberName.equals(e.getMemberName()))
+                .collect(Collectors.toList());
+    }
+
+    private static List<Entry> entries() {
+        List<Entry> result = entries;
+        if (result == null) {
+            List<Entry> loaded = new ArrayList<>();
+            for (Index index : ServiceLoader.load(Index.class, ChangeHistory.class.getClassLoader())) {
+                index.addTo(loaded);
+            }
+            result = Collections.unmodifiableList(loaded);
+            entries = result;
+        }
+        return result;
+    }
+
+    /**
+     * Implemented by classes generated by {@link ChangeProcessor}.
+     */
+    public interface Index {
+        void addTo(Collection<Entry> entries);
+    }
+
+    /**
+     * One {@link Change} annotation.
+     */
+    public static final class Entry {
+        private final String className;
+        private final String memberName;
+        private final String date;
+        private final String reason;
+
+        /**
+         * @param className  binary name of the annotated class
+         * @param memberName name of the annotated member or null if the class itself is annotated
+         * @param date       see {@link Change#date()}
+         * @param reason     see {@link Change#reason()}
+         */
+        public Entry(String className, String memberName, String date, String reason) {
+            this.className = className;
+            this.memberName = memberName;
+            this.date = date;
+            this.reason = reason;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getMemberName() {
+            return memberName;
+        }
+
+        public String getDate() {
+            return date;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return className + (memberName == null ? "" : "#" + memberName) + " " + date + ": " + reason;
+        }
+    }
+}
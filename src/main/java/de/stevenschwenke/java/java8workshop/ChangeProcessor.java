@@ -0,0 +1,142 @@
+package de.stevenschwenke.java.java8workshop;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Annotation processor that writes all {@link Change} annotations into a generated {@link ChangeHistory.Index}.
+ * <p>
+ * An annotation processor runs inside the compiler. It sees all annotations in the source code, even the ones that
+ * are not retained at runtime. The generated class is registered for the {@link java.util.ServiceLoader}, so
+ * {@link ChangeHistory} finds it without scanning anything.
+ * <p>
+ * It is activated in the pom.xml for the test sources because that's where the annotations are used in this workshop.
+ */
+@SupportedAnnotationTypes({
+        "de.stevenschwenke.java.java8workshop.Change",
+        "de.stevenschwenke.java.java8workshop.ChangeLog"})
+public class ChangeProcessor extends AbstractProcessor {
+
+    static final String GENERATED_CLASS = ChangeProcessor.class.getPackage().getName() + ".GeneratedChangeIndex";
+
+    /*
+        Sources generated in the last round are not compiled without a warning, so every round with annotations
+        writes its own index class right away: GeneratedChangeIndex, GeneratedChangeIndex2, ... (more than one only if
+        other processors generate annotated sources). The last round only registers them for the ServiceLoader.
+     */
+    private final List<String> generatedClasses = new ArrayList<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!generatedClasses.isEmpty()) {
+                writeServiceFile();
+            }
+            return false;
+        }
+
+        // A single @Change is found as it is, two or more are wrapped in the container @ChangeLog by the compiler.
+        Set<Element> annotated = new LinkedHashSet<>(roundEnv.getElementsAnnotatedWith(Change.class));
+        annotated.addAll(roundEnv.getElementsAnnotatedWith(ChangeLog.class));
+
+        // Java source of the lines that register the entries
+        List<String> registrations = new ArrayList<>();
+        for (Element element : annotated) {
+            for (Change change : element.getAnnotationsByType(Change.class)) {
+                registrations.add("entries.add(new ChangeHistory.Entry("
+                        + literal(className(element)) + ", "
+                        + literal(memberName(element)) + ", "
+                        + literal(change.date()) + ", "
+                        + literal(change.reason()) + "));");
+            }
+        }
+        if (!registrations.isEmpty()) {
+            writeIndex(registrations);
+        }
+        return true;
+    }
+
+    private String className(Element element) {
+        Element type = element;
+        while (!type.getKind().isClass() && !type.getKind().isInterface()) {
+            type = type.getEnclosingElement();
+        }
+        return processingEnv.getElementUtils().getBinaryName((TypeElement) type).toString();
+    }
+
+    private String memberName(Element element) {
+        if (element.getKind().isClass() || element.getKind().isInterface()) {
+            return null;
+        }
+        if (element.getKind() == ElementKind.PARAMETER) {
+            // parameters belong to their method
+            return element.getEnclosingElement().getSimpleName().toString();
+        }
+        return element.getSimpleName().toString();
+    }
+
+    private String literal(String value) {
+        Elements elements = processingEnv.getElementUtils();
+        return value == null ? "null" : elements.getConstantExpression(value);
+    }
+
+    private void writeIndex(List<String> registrations) {
+        String name = GENERATED_CLASS + (generatedClasses.isEmpty() ? "" : String.valueOf(generatedClasses.size() + 1));
+        String packageName = name.substring(0, name.lastIndexOf('.'));
+        String simpleName = name.substring(packageName.length() + 1);
+        try {
+            JavaFileObject source = processingEnv.getFiler().createSourceFile(name);
+            try (Writer writer = source.openWriter()) {
+                writer.write("package " + packageName + ";\n\n");
+                writer.write("// Generated by " + ChangeProcessor.class.getName() + ". Do not edit.\n");
+                writer.write("public final class " + simpleName + " implements ChangeHistory.Index {\n\n");
+                writer.write("    @Override\n");
+                writer.write("    public void addTo(java.util.Collection<ChangeHistory.Entry> entries) {\n");
+                for (String registration : registrations) {
+                    writer.write("        " + registration + "\n");
+                }
+                writer.write("    }\n}\n");
+            }
+            generatedClasses.add(name);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write change index: " + e.getMessage());
+        }
+    }
+
+    private void writeServiceFile() {
+        try {
+            FileObject service = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    "META-INF/services/" + ChangeHistory.Index.class.getName());
+            try (Writer writer = service.openWriter()) {
+                for (String generatedClass : generatedClasses) {
+                    writer.write(generatedClass + "\n");
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not register change index: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an action only after things have calmed down: every submit replaces the action that's still waiting. While
+ * the user types, the filter runs once after the last keystroke instead of once per keystroke.
+ */
+public class Debouncer {
+
+    private final ScheduledExecutorService executor;
+    private final long delay;
+    private final TimeUnit unit;
+    private ScheduledFuture<?> pending;
+
+    /**
+     * @param executor runs the actions. With a single thread, the actions never run at the same time.
+     * @param delay    time without a new submit before the action runs
+     * @param unit     unit of the delay
+     */
+    public Debouncer(ScheduledExecutorService executor, long delay, TimeUnit unit) {
+        this.executor = executor;
+        this.delay = delay;
+        this.unit = unit;
+    }
+
+    /**
+     * @param action replaces the waiting action, if any. An action that already runs is not interrupted.
+     */
+    public synchronized void submit(Runnable action) {
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        pending = executor.schedule(action, delay, unit);
+    }
+}
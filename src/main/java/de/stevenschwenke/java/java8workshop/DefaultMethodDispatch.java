@@ -0,0 +1,87 @@
+package de.stevenschwenke.java.java8workshop;
+
+/**
+ * Helper for calling {@link InterfaceWithDefaultMethod#addStuff(int)} and
+ * {@link InterfaceWithDefaultMethodGen1#getSomeString()} in hot loops over mixed implementations.
+ * <p>
+ * The JIT remembers which classes it has seen at every call site. One class ("monomorphic") or two classes
+ * ("bimorphic") are fine, the method gets inlined. With three or more classes ("megamorphic") the call goes through
+ * the interface table and nothing gets inlined. Default methods make this worse because it's not obvious how many
+ * different implementations of a method there actually are.
+ * <p>
+ * The trick used here: check the exact class of the receiver and call the method on a cast reference. Each of these
+ * call sites only ever sees one class and stays monomorphic. The known implementations are final, so the JIT can even
+ * bind the call without looking at the profile at all. Unknown implementations fall back to the normal interface call.
+ */
+public final class DefaultMethodDispatch {
+
+    private DefaultMethodDispatch() {
+        // only static helpers
+    }
+
+    /**
+     * Calls {@link InterfaceWithDefaultMethod#addStuff(int)} on every element and sums up the results.
+     *
+     * @param implementations mixed implementations of the interface
+     * @param base            argument for every call
+     * @return sum of all results
+     */
+    public static long sumOfAddStuff(InterfaceWithDefaultMethod[] implementations, int base) {
+        long sum = 0;
+        for (InterfaceWithDefaultMethod i : implementations) {
+            sum += addStuff(i, base);
+        }
+        return sum;
+    }
+
+    /**
+     * Calls {@link InterfaceWithDefaultMethod#addStuff(int)} with a separate call site per known implementation.
+     *
+     * @param implementation to call
+     * @param base           argument for the call
+     * @return result of the call
+     */
+    public static int addStuff(InterfaceWithDefaultMethod implementation, int base) {
+        Class<?> type = implementation.getClass();
+        if (type == DefaultMethodImplementingEmptyClass.class) {
+            // inherits the default method
+            return ((DefaultMethodImplementingEmptyClass) implementation).addStuff(base);
+        }
+        if (type == DefaultMethodOverridingClass.class) {
+            return ((DefaultMethodOverridingClass) implementation).addStuff(base);
+        }
+        return implementation.addStuff(base);
+    }
+
+    /**
+     * Calls {@link InterfaceWithDefaultMethodGen1#getSomeString()} on every element and sums up the lengths.
+     *
+     * @param implementations mixed implementations of generation 1 and 2
+     * @return sum of all lengths
+     */
+    public static long sumOfSomeStringLengths(InterfaceWithDefaultMethodGen1[] implementations) {
+        long sum = 0;
+        for (InterfaceWithDefaultMethodGen1 i : implementations) {
+            sum += getSomeString(i).length();
+        }
+        return sum;
+    }
+
+    /**
+     * Calls {@link InterfaceWithDefaultMethodGen1#getSomeString()} with a separate call site per known implementation.
+     * Which default method a class gets depends on the generation it implements, the exact class decides that, too.
+     *
+     * @param implementation to call
+     * @return result of the call
+     */
+    public static String getSomeString(InterfaceWithDefaultMethodGen1 implementation) {
+        Class<?> type = implementation.getClass();
+        if (type == DefaultMethodGen1Class.class) {
+            return ((DefaultMethodGen1Class) implementation).getSomeString();
+        }
+        if (type == DefaultMethodGen2Class.class) {
+            return ((DefaultMethodGen2Class) implementation).getSomeString();
+        }
+        return implementation.getSomeString();
+    }
+}
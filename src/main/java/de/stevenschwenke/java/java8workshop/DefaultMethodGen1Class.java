@@ -0,0 +1,7 @@
+package de.stevenschwenke.java.java8workshop;
+
+public final class DefaultMethodGen1Class implements InterfaceWithDefaultMethodGen1 {
+
+    // Gets the default method of generation 1, nobody overrides it here.
+
+}
@@ -0,0 +1,7 @@
+package de.stevenschwenke.java.java8workshop;
+
+public final class DefaultMethodGen2Class implements InterfaceWithDefaultMethodGen2 {
+
+    // Gets the default method of generation 2, which overrides the one of generation 1.
+
+}
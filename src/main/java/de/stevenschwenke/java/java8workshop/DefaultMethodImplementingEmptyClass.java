@@ -1,6 +1,6 @@
 package de.stevenschwenke.java.java8workshop;
 
-public class DefaultMethodImplementingEmptyClass implements InterfaceWithDefaultMethod {
+public final class DefaultMethodImplementingEmptyClass implements InterfaceWithDefaultMethod {
 
     // OH NO! Nothing in here! But it's ok :)
 
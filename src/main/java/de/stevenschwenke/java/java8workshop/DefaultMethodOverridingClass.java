@@ -1,6 +1,6 @@
 package de.stevenschwenke.java.java8workshop;
 
-public class DefaultMethodOverridingClass implements InterfaceWithDefaultMethod {
+public final class DefaultMethodOverridingClass implements InterfaceWithDefaultMethod {
 
     // This is an overwrite for the default method in the interface:
     public int addStuff(int base) {
@@ -0,0 +1,42 @@
+package de.stevenschwenke.java.java8workshop;
+
+/**
+ * Turns the source of an expression into a {@link RuleExpression}.
+ * <p>
+ * The default is the built-in {@link ExpressionCompiler} that behaves the same on every JDK. A JavaScript engine is
+ * only used for expressions the compiler doesn't understand, and only if there is one: Nashorn is gone since Java 15.
+ */
+@FunctionalInterface
+public interface ExpressionBackend {
+
+    /**
+     * @param source of the expression
+     * @return compiled expression
+     * @throws IllegalArgumentException if the source is not a valid expression
+     */
+    RuleExpression compile(String source);
+
+    /**
+     * @param fallback backend for expressions this backend can't compile
+     * @return backend that tries this backend first
+     */
+    default ExpressionBackend orElse(ExpressionBackend fallback) {
+        return source -> {
+            try {
+                return compile(source);
+            } catch (IllegalArgumentException e) {
+                return fallback.compile(source);
+            }
+        };
+    }
+
+    /**
+     * @return the built-in compiler, handing off to Nashorn if it's available
+     */
+    static ExpressionBackend defaultBackend() {
+        ExpressionBackend compiler = new ExpressionCompiler();
+        return ScriptExpressionBackend.find("nashorn")
+                .map(compiler::orElse)
+                .orElse(compiler);
+    }
+}
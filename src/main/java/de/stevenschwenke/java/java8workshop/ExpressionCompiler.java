@@ -0,0 +1,347 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Small built-in {@link ExpressionBackend} for rule expressions. It understands
+ * <ul>
+ * <li>numbers, strings in single or double quotes, true and false</li>
+ * <li>variables, which are looked up in the map given to {@link RuleExpression#evaluate(Map)}</li>
+ * <li>arithmetic: + - * / % and unary -</li>
+ * <li>comparison: &lt; &lt;= &gt; &gt;= == !=</li>
+ * <li>boolean logic: &amp;&amp; || ! and the conditional operator ? :</li>
+ * <li>parentheses</li>
+ * </ul>
+ * Numbers are calculated as double, just like in JavaScript. The source is parsed once into a tree of lambdas, parts
+ * without variables are calculated right away. Evaluating then is just calling the lambdas - no parsing, no script
+ * engine.
+ */
+public class ExpressionCompiler implements ExpressionBackend {
+
+    @Override
+    public RuleExpression compile(String source) {
+        Parser parser = new Parser(source);
+        Node root = parser.conditional();
+        parser.skipWhitespace();
+        if (parser.position < source.length()) {
+            throw parser.error("Unexpected '" + source.charAt(parser.position) + "'");
+        }
+        return root::value;
+    }
+
+    /**
+     * Part of the compiled expression. Numeric and boolean nodes implement {@link #number(Map)} and
+     * {@link #bool(Map)} directly, so calculations inside of an expression don't box their intermediate results.
+     */
+    private interface Node {
+        Object value(Map<String, ?> variables);
+
+        default double number(Map<String, ?> variables) {
+            Object value = value(variables);
+            if (!(value instanceof Number)) {
+                throw new IllegalArgumentException("Not a number: " + value);
+            }
+            return ((Number) value).doubleValue();
+        }
+
+        default boolean bool(Map<String, ?> variables) {
+            Object value = value(variables);
+            if (!(value instanceof Boolean)) {
+                throw new IllegalArgumentException("Not a boolean: " + value);
+            }
+            return (Boolean) value;
+        }
+
+        default boolean isConstant() {
+            return false;
+        }
+    }
+
+    private static Node constant(Object value) {
+        return new Node() {
+            @Override
+            public Object value(Map<String, ?> variables) {
+                return value;
+            }
+
+            @Override
+            public boolean isConstant() {
+                return true;
+            }
+        };
+    }
+
+    private static Node numeric(ToDoubleFunction<Map<String, ?>> function, Node... operands) {
+        Node node = new Node() {
+            @Override
+            public Object value(Map<String, ?> variables) {
+                return function.applyAsDouble(variables);
+            }
+
+            @Override
+            public double number(Map<String, ?> variables) {
+                return function.applyAsDouble(variables);
+            }
+        };
+        return foldIfConstant(node, operands);
+    }
+
+    private static Node logical(Predicate<Map<String, ?>> predicate, Node... operands) {
+        Node node = new Node() {
+            @Override
+            public Object value(Map<String, ?> variables) {
+                return predicate.test(variables);
+            }
+
+            @Override
+            public boolean bool(Map<String, ?> variables) {
+                return predicate.test(variables);
+            }
+        };
+        return foldIfConstant(node, operands);
+    }
+
+    // An operation on constants always has the same result, so it's calculated while compiling.
+    private static Node foldIfConstant(Node node, Node... operands) {
+        for (Node operand : operands) {
+            if (!operand.isConstant()) {
+                return node;
+            }
+        }
+        return constant(node.value(Collections.emptyMap()));
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        }
+        return Objects.equals(a, b);
+    }
+
+    /**
+     * Recursive descent parser, one method per level of operator precedence.
+     */
+    private static class Parser {
+        private final String source;
+        private int position;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        // conditional := or ('?' conditional ':' conditional)?
+        Node conditional() {
+            Node condition = or();
+            if (!accept("?")) {
+                return condition;
+            }
+            Node then = conditional();
+            expect(":");
+            Node otherwise = conditional();
+            if (condition.isConstant()) {
+                return condition.bool(Collections.emptyMap()) ? then : otherwise;
+            }
+            return variables -> condition.bool(variables) ? then.value(variables) : otherwise.value(variables);
+        }
+
+        // or := and ('||' and)*
+        Node or() {
+            Node left = and();
+            while (accept("||")) {
+                Node l = left;
+                Node r = and();
+                left = logical(v -> l.bool(v) || r.bool(v), l, r);
+            }
+            return left;
+        }
+
+        // and := equality ('&&' equality)*
+        Node and() {
+            Node left = equality();
+            while (accept("&&")) {
+                Node l = left;
+                Node r = equality();
+                left = logical(v -> l.bool(v) && r.bool(v), l, r);
+            }
+            return left;
+        }
+
+        // equality := comparison (('==' | '!=') comparison)*
+        Node equality() {
+            Node left = comparison();
+            while (true) {
+                Node l = left;
+                if (accept("==")) {
+                    Node r = comparison();
+                    left = logical(v -> equal(l.value(v), r.value(v)), l, r);
+                } else if (accept("!=")) {
+                    Node r = comparison();
+                    left = logical(v -> !equal(l.value(v), r.value(v)), l, r);
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        // comparison := additive (('<=' | '<' | '>=' | '>') additive)*
+        Node comparison() {
+            Node left = additive();
+            while (true) {
+                Node l = left;
+                if (accept("<=")) {
+                    Node r = additive();
+                    left = logical(v -> l.number(v) <= r.number(v), l, r);
+                } else if (accept("<")) {
+                    Node r = additive();
+                    left = logical(v -> l.number(v) < r.number(v), l, r);
+                } else if (accept(">=")) {
+                    Node r = additive();
+                    left = logical(v -> l.number(v) >= r.number(v), l, r);
+                } else if (accept(">")) {
+                    Node r = additive();
+                    left = logical(v -> l.number(v) > r.number(v), l, r);
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        // additive := multiplicative (('+' | '-') multiplicative)*
+        Node additive() {
+            Node left = multiplicative();
+            while (true) {
+                Node l = left;
+                if (accept("+")) {
+                    Node r = multiplicative();
+                    left = numeric(v -> l.number(v) + r.number(v), l, r);
+                } else if (accept("-")) {
+                    Node r = multiplicative();
+                    left = numeric(v -> l.number(v) - r.number(v), l, r);
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        // multiplicative := unary (('*' | '/' | '%') unary)*
+        Node multiplicative() {
+            Node left = unary();
+            while (true) {
+                Node l = left;
+                if (accept("*")) {
+                    Node r = unary();
+                    left = numeric(v -> l.number(v) * r.number(v), l, r);
+                } else if (accept("/")) {
+                    Node r = unary();
+                    left = numeric(v -> l.number(v) / r.number(v), l, r);
+                } else if (accept("%")) {
+                    Node r = unary();
+                    left = numeric(v -> l.number(v) % r.number(v), l, r);
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        // unary := ('!' | '-') unary | primary
+        Node unary() {
+            if (accept("!")) {
+                Node operand = unary();
+                return logical(v -> !operand.bool(v), operand);
+            }
+            if (accept("-")) {
+                Node operand = unary();
+                return numeric(v -> -operand.number(v), operand);
+            }
+            return primary();
+        }
+
+        // primary := number | string | 'true' | 'false' | variable | '(' conditional ')'
+        Node primary() {
+            skipWhitespace();
+            if (position >= source.length()) {
+                throw error("Unexpected end of expression");
+            }
+            char c = source.charAt(position);
+            if (accept("(")) {
+                Node inner = conditional();
+                expect(")");
+                return inner;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                int start = position;
+                while (position < source.length()
+                        && (Character.isDigit(source.charAt(position)) || source.charAt(position) == '.')) {
+                    position++;
+                }
+                try {
+                    return constant(Double.parseDouble(source.substring(start, position)));
+                } catch (NumberFormatException e) {
+                    throw error("Invalid number");
+                }
+            }
+            if (c == '\'' || c == '"') {
+                int end = source.indexOf(c, position + 1);
+                if (end < 0) {
+                    throw error("Unterminated string");
+                }
+                String string = source.substring(position + 1, end);
+                position = end + 1;
+                return constant(string);
+            }
+            if (Character.isJavaIdentifierStart(c)) {
+                int start = position;
+                while (position < source.length() && Character.isJavaIdentifierPart(source.charAt(position))) {
+                    position++;
+                }
+                String name = source.substring(start, position);
+                if (name.equals("true") || name.equals("false")) {
+                    return constant(Boolean.valueOf(name));
+                }
+                return variables -> {
+                    Object value = variables.get(name);
+                    if (value == null && !variables.containsKey(name)) {
+                        throw new IllegalArgumentException("Unknown variable " + name);
+                    }
+                    return value;
+                };
+            }
+            throw error("Unexpected '" + c + "'");
+        }
+
+        boolean accept(String token) {
+            skipWhitespace();
+            if (!source.startsWith(token, position)) {
+                return false;
+            }
+            // don't take '<' from '<=', '!' from '!=' and so on
+            int next = position + token.length();
+            if (token.length() == 1 && next < source.length() && "=&|".indexOf(source.charAt(next)) >= 0
+                    && "<>!=&|".contains(token)) {
+                return false;
+            }
+            position = next;
+            return true;
+        }
+
+        void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'");
+            }
+        }
+
+        void skipWhitespace() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) {
+                position++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position + " in: " + source);
+        }
+    }
+}
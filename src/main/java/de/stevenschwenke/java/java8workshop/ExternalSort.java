@@ -0,0 +1,302 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * sorted() for streams that don't fit into memory.
+ * <p>
+ * {@code Stream.sorted()} collects all elements in memory before it can return the first one. This class reads at
+ * most {@code runSize} elements, sorts them and writes them to a temporary file ("run"). Several runs are sorted and
+ * written in parallel. At the end, the runs are merged: the smallest of the first elements of all runs is the
+ * smallest element overall. The merge is lazy, only one element per run is in memory at a time.
+ * <p>
+ * The resulting stream should be closed (for example with try-with-resources) to delete the temporary files early.
+ * They are deleted anyway when the stream has been read completely.
+ *
+ * @param <T> type of the elements
+ */
+public class ExternalSort<T> {
+
+    // the runs show up as tasks in Flight Recordings, see FlightEvents
+    private static final Executor RUN_EXECUTOR = FlightEvents.instrument("external-sort", "sort and write run",
+            ForkJoinPool.commonPool());
+
+    private final Comparator<? super T> comparator;
+    private final Codec<T> codec;
+    private final int runSize;
+    private final Path temporaryDirectory;
+    private final int parallelism;
+
+    /**
+     * @param comparator order of the elements
+     * @param codec      writes and reads elements to and from the temporary files
+     * @param runSize    maximum number of elements sorted in memory at once. With the parallel sorting of runs, up
+     *                   to (parallelism + 1) * runSize elements are in memory.
+     */
+    public ExternalSort(Comparator<? super T> comparator, Codec<T> codec, int runSize) {
+        this(comparator, codec, runSize, null, ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * @param comparator         order of the elements
+     * @param codec              writes and reads elements to and from the temporary files
+     * @param runSize            maximum number of elements sorted in memory at once
+     * @param temporaryDirectory where the runs are written to, null for the default temporary directory
+     * @param parallelism        maximum number of runs sorted and written at the same time
+     */
+    public ExternalSort(Comparator<? super T> comparator, Codec<T> codec, int runSize, Path temporaryDirectory,
+                        int parallelism) {
+        if (runSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("runSize and parallelism have to be positive");
+        }
+        this.comparator = comparator;
+        this.codec = codec;
+        this.runSize = runSize;
+        this.temporaryDirectory = temporaryDirectory;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sorts the stream. Elements that are equal for the comparator keep their order, just like with sorted().
+     *
+     * @param source stream to sort, is consumed completely before the first element is returned
+     * @return sorted stream
+     * @throws UncheckedIOException if the temporary files can't be written
+     */
+    public Stream<T> sort(Stream<T> source) {
+        List<CompletableFuture<Path>> runs = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(parallelism);
+        Iterator<T> elements = source.iterator();
+        try {
+            List<T> chunk = new ArrayList<>();
+            while (elements.hasNext()) {
+                chunk.add(elements.next());
+                if (chunk.size() == runSize && elements.hasNext()) {
+                    runs.add(writeRunAsync(chunk, inFlight));
+                    chunk = new ArrayList<>();
+                }
+            }
+            if (runs.isEmpty()) {
+                // fits into memory, no need for files at all
+                chunk.sort(comparator);
+                return chunk.stream();
+            }
+            runs.add(writeRunAsync(chunk, inFlight));
+
+            List<Path> files = new ArrayList<>();
+            for (CompletableFuture<Path> run : runs) {
+                files.add(run.get());
+            }
+            Merger merger = new Merger(files);
+            return StreamSupport.stream(
+                    Spliterators.spliteratorUnknownSize(merger, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(merger::close);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteAll(runs);
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            deleteAll(runs);
+            throw new UncheckedIOException(new IOException("Could not write run", e.getCause()));
+        } catch (RuntimeException e) {
+            deleteAll(runs);
+            throw e;
+        } finally {
+            source.close();
+        }
+    }
+
+    private CompletableFuture<Path> writeRunAsync(List<T> chunk, Semaphore inFlight) throws InterruptedException {
+        // Blocks reading the source while too many runs are sorted, so memory stays bounded.
+        inFlight.acquire();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                chunk.sort(comparator);
+                return writeRun(chunk);
+            } finally {
+                inFlight.release();
+            }
+        }, RUN_EXECUTOR);
+    }
+
+    private Path writeRun(List<T> sortedChunk) {
+        try {
+            Path file = temporaryDirectory == null
+                    ? Files.createTempFile("sort-run", ".bin")
+                    : Files.createTempFile(temporaryDirectory, "sort-run", ".bin");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                    1 << 16))) {
+                out.writeInt(sortedChunk.size());
+                for (T element : sortedChunk) {
+                    codec.write(out, element);
+                }
+            }
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteAll(List<CompletableFuture<Path>> runs) {
+        for (CompletableFuture<Path> run : runs) {
+            run.thenAccept(ExternalSort::delete);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // not worth failing for, it's in the temporary directory anyway
+        }
+    }
+
+    /**
+     * Merges the sorted runs lazily. On ties, the run that was written first wins - that keeps the sort stable.
+     */
+    private class Merger implements Iterator<T> {
+        private final List<Run> runs = new ArrayList<>();
+        private final PriorityQueue<Run> heads;
+
+        Merger(List<Path> files) {
+            heads = new PriorityQueue<>(files.size(), Comparator.<Run, T>comparing(r -> r.head, comparator)
+                    .thenComparingInt(r -> r.index));
+            try {
+                for (Path file : files) {
+                    Run run = new Run(runs.size(), file);
+                    runs.add(run);
+                    if (run.advance()) {
+                        heads.add(run);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (heads.isEmpty()) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Run run = heads.poll();
+            T result = run.head;
+            try {
+                if (run.advance()) {
+                    heads.add(run);
+                }
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+            return result;
+        }
+
+        void close() {
+            for (Run run : runs) {
+                run.close();
+            }
+        }
+    }
+
+    private class Run {
+        private final int index;
+        private final Path file;
+        private final DataInputStream in;
+        private int remaining;
+        private T head;
+
+        Run(int index, Path file) throws IOException {
+            this.index = index;
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            this.remaining = in.readInt();
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                close();
+                return false;
+            }
+            remaining--;
+            head = codec.read(in);
+            return true;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // closing is best effort
+            }
+            delete(file);
+        }
+    }
+
+    /**
+     * Writes elements to the temporary files and reads them back in.
+     *
+     * @param <T> type of the elements
+     */
+    public interface Codec<T> {
+        void write(DataOutput out, T element) throws IOException;
+
+        T read(DataInput in) throws IOException;
+
+        /**
+         * @return codec for strings of any length: length as int plus UTF-8 bytes
+         */
+        static Codec<String> strings() {
+            return new Codec<String>() {
+                @Override
+                public void write(DataOutput out, String element) throws IOException {
+                    byte[] bytes = element.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                @Override
+                public String read(DataInput in) throws IOException {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            };
+        }
+    }
+}
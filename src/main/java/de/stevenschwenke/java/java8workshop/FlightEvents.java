@@ -0,0 +1,167 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Own events for the Flight Recorder, see C_11_MissionControl. A recording shows them in Mission Control next to
+ * garbage collections and locks, under "Java 8 Workshop":
+ * <ul>
+ * <li>terminal operations of a {@link StreamPipeline}</li>
+ * <li>tasks of an executor wrapped with {@link #instrument(String, String, Executor)}, with the time they waited in
+ * the queue</li>
+ * <li>evaluations of {@link CachedScriptEngine}</li>
+ * </ul>
+ * An event that isn't enabled in the recording costs almost nothing. To switch them off completely, start the JVM with
+ * -Djava8workshop.jfr=false.
+ * <p>
+ * The events need the jdk.jfr API of Java 11 or of OpenJDK 8u262 and later. This class doesn't use it itself: the
+ * events are in JfrEvents, which is only loaded if the JVM has jdk.jfr and which isn't compiled on Java 8 (see the
+ * profile in pom.xml). Without it, nothing is recorded. Errors in the events never reach the code that's recorded.
+ */
+public final class FlightEvents {
+
+    private static final int MAX_SCRIPT_LENGTH = 200;
+
+    private static final Recorder RECORDER = loadRecorder();
+
+    /**
+     * False if the JVM has no Flight Recorder API or the events are switched off with -Djava8workshop.jfr=false. Static
+     * and final, so the JIT removes the code of the events completely.
+     */
+    public static final boolean ENABLED = RECORDER != null;
+
+    private FlightEvents() {
+        // only static methods
+    }
+
+    /**
+     * The events, implemented in JfrEvents. begin methods return null if the event isn't recorded.
+     */
+    interface Recorder {
+        Object beginStreamPipeline();
+
+        void commitStreamPipeline(Object event, String terminal, Supplier<String> plan, long sourceSize,
+                                  boolean parallel);
+
+        Object beginTask();
+
+        void commitTask(Object event, String executor, String task, long queueWait);
+
+        Object beginScriptEvaluation();
+
+        void commitScriptEvaluation(Object event, String engine, String script, int variables);
+    }
+
+    private static Recorder loadRecorder() {
+        if (!Boolean.parseBoolean(System.getProperty("java8workshop.jfr", "true"))) {
+            return null;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName(FlightEvents.class.getPackage().getName() + ".JfrEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // no jdk.jfr in this JVM, or compiled without JfrEvents
+            return null;
+        }
+    }
+
+    /**
+     * @param name     name of the executor in the events
+     * @param task     what the tasks do, for example "sort run". The class of a task says little: it's a lambda or
+     *                 an internal class of CompletableFuture most of the time.
+     * @param executor executor to wrap
+     * @return executor that records an event for every task
+     */
+    public static Executor instrument(String name, String task, Executor executor) {
+        if (!ENABLED) {
+            return executor;
+        }
+        return runnable -> {
+            long submitted = System.nanoTime();
+            executor.execute(() -> {
+                Object event = beginTask();
+                long started = System.nanoTime();
+                try {
+                    runnable.run();
+                } finally {
+                    commitTask(event, name, task, started - submitted);
+                }
+            });
+        };
+    }
+
+    /*
+        The begin and commit methods are called around the code that's recorded. They catch everything the event code
+        might throw: a broken event must not stop a task or fail a stream.
+     */
+
+    static Object beginStreamPipeline() {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            return RECORDER.beginStreamPipeline();
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    static void commitStreamPipeline(Object event, String terminal, Supplier<String> plan, long sourceSize,
+                                     boolean parallel) {
+        if (event == null) {
+            return;
+        }
+        try {
+            RECORDER.commitStreamPipeline(event, terminal, plan, sourceSize, parallel);
+        } catch (RuntimeException | LinkageError e) {
+            // not recorded
+        }
+    }
+
+    static Object beginScriptEvaluation() {
+        if (!ENABLED) {
+            return null;
+        }
+        try {
+            return RECORDER.beginScriptEvaluation();
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    static void commitScriptEvaluation(Object event, String engine, String script, int variables) {
+        if (event == null) {
+            return;
+        }
+        try {
+            RECORDER.commitScriptEvaluation(event, engine, shorten(script), variables);
+        } catch (RuntimeException | LinkageError e) {
+            // not recorded
+        }
+    }
+
+    private static Object beginTask() {
+        try {
+            return RECORDER.beginTask();
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static void commitTask(Object event, String executor, String task, long queueWait) {
+        if (event == null) {
+            return;
+        }
+        try {
+            RECORDER.commitTask(event, executor, task, queueWait);
+        } catch (RuntimeException | LinkageError e) {
+            // not recorded
+        }
+    }
+
+    static String shorten(String script) {
+        return script.length() <= MAX_SCRIPT_LENGTH ? script : script.substring(0, MAX_SCRIPT_LENGTH - 3) + "...";
+    }
+}
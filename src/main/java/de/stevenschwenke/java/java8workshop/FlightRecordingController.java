@@ -0,0 +1,307 @@
+package de.stevenschwenke.java.java8workshop;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flight recording that runs all the time and is written to disk when something goes wrong - without Mission Control,
+ * see C_11_MissionControl.
+ * <p>
+ * The recording keeps only the last minutes (max age) and at most a certain amount of data (max size), older data is
+ * thrown away. When a trigger fires, those last minutes are dumped into a file. Triggers are:
+ * <ul>
+ * <li>the 99th percentile of the latencies given to {@link #recordLatency(long)} is above a threshold</li>
+ * <li>a stop-the-world garbage collection took longer than a threshold</li>
+ * <li>{@link ThreadMXBean#findDeadlockedThreads()} finds a deadlock</li>
+ * <li>{@link #dump(String)} is called, for example by a monitoring endpoint</li>
+ * </ul>
+ * Only the newest dumps are kept, and after a dump, triggers are ignored for a while (cooldown), so a problem that
+ * persists doesn't fill the disk. Latencies and deadlocks are checked periodically, dumps are written in the
+ * background.
+ */
+public class FlightRecordingController implements AutoCloseable {
+
+    private static final int LATENCY_WINDOW = 1000;
+    private static final int MIN_LATENCY_SAMPLES = 100;
+    // MXBeans whose notifications are concurrent cycles, not pauses. ZGC before Java 17 has only one bean "ZGC".
+    private static final List<String> CONCURRENT_COLLECTORS = Arrays.asList("ConcurrentMarkSweep", "ZGC",
+            "ZGC Cycles", "ZGC Major Cycles", "ZGC Minor Cycles", "Shenandoah Cycles", "G1 Concurrent GC");
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path directory;
+    private final Duration maxAge;
+    private volatile long maxSize = 100 * 1024 * 1024;
+    private volatile int maxDumps = 10;
+    private volatile Duration cooldown = Duration.ofMinutes(5);
+    private volatile Duration checkInterval = Duration.ofSeconds(10);
+    private volatile Duration latencyThreshold;
+    private volatile Duration gcPauseThreshold;
+
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "flight-recording-controller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<NotificationEmitter> gcEmitters = new ArrayList<>();
+    private final NotificationListener gcListener = (notification, handback) -> {
+        if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            onGarbageCollection(GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()));
+        }
+    };
+
+    private Recording recording;
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private int nextLatency;
+    private int latencyCount;
+    private final Deque<Path> dumps = new ArrayDeque<>();
+    private long lastDump = Long.MIN_VALUE;
+    private int dumpNumber;
+
+    /**
+     * @param directory where the dumps are written
+     * @param maxAge    how long the recording looks back
+     */
+    public FlightRecordingController(Path directory, Duration maxAge) {
+        this.directory = directory;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param maxSize bytes the recording keeps at most. Default is 100 MB.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxDumps number of dumps that are kept, older ones are deleted. Default is 10.
+     */
+    public void setMaxDumps(int maxDumps) {
+        this.maxDumps = maxDumps;
+    }
+
+    /**
+     * @param cooldown time after a dump in which triggers are ignored. Default is 5 minutes.
+     */
+    public void setCooldown(Duration cooldown) {
+        this.cooldown = cooldown;
+    }
+
+    /**
+     * @param checkInterval how often latencies and deadlocks are checked. Default is 10 seconds. Set before
+     *                      {@link #start()}.
+     */
+    public void setCheckInterval(Duration checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @param latencyThreshold dump if the 99th percentile of the recorded latencies is above this, null for never
+     */
+    public void setLatencyThreshold(Duration latencyThreshold) {
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * Only stop-the-world collections count. The time is the duration of the whole collection as reported by the
+     * GarbageCollectorMXBean, which is a bit longer than the pause the application noticed. Cycles of concurrent
+     * collectors (CMS, ZGC, Shenandoah, G1's concurrent marking) are ignored.
+     *
+     * @param gcPauseThreshold dump if a stop-the-world garbage collection takes longer than this, null for never
+     */
+    public void setGcPauseThreshold(Duration gcPauseThreshold) {
+        this.gcPauseThreshold = gcPauseThreshold;
+    }
+
+    /**
+     * Starts the recording with the "default" settings of the JDK, which are meant to run in production all the time.
+     *
+     * @throws IOException if the settings can't be read
+     */
+    public synchronized void start() throws IOException {
+        if (recording != null) {
+            throw new IllegalStateException("Already started");
+        }
+        Configuration settings;
+        try {
+            settings = Configuration.getConfiguration("default");
+        } catch (ParseException e) {
+            throw new IOException("Default settings of the Flight Recorder are broken", e);
+        }
+        Files.createDirectories(directory);
+        recording = new Recording(settings);
+        recording.setName("continuous");
+        recording.setToDisk(true);
+        recording.setMaxAge(maxAge);
+        recording.setMaxSize(maxSize);
+        recording.start();
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(gcListener, null, null);
+                gcEmitters.add(emitter);
+            }
+        }
+        long interval = checkInterval.toMillis();
+        background.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param nanos latency of one request, operation, ... Cheap enough to be called for every request.
+     */
+    public void recordLatency(long nanos) {
+        synchronized (latencies) {
+            latencies[nextLatency] = nanos;
+            nextLatency = (nextLatency + 1) % LATENCY_WINDOW;
+            latencyCount = Math.min(LATENCY_WINDOW, latencyCount + 1);
+        }
+    }
+
+    /**
+     * @return 99th percentile of the last 1000 latencies in nanoseconds, -1 if there are less than 100
+     */
+    public long getLatencyP99() {
+        long[] window;
+        synchronized (latencies) {
+            if (latencyCount < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            window = Arrays.copyOf(latencies, latencyCount);
+        }
+        Arrays.sort(window);
+        return window[(int) Math.ceil(window.length * 0.99) - 1];
+    }
+
+    private void check() {
+        Duration threshold = latencyThreshold;
+        long p99 = getLatencyP99();
+        if (threshold != null && p99 > threshold.toNanos() && trigger("latency")) {
+            // The same latencies shouldn't trigger again. During the cooldown, they are kept for the next check.
+            synchronized (latencies) {
+                nextLatency = 0;
+                latencyCount = 0;
+            }
+        }
+        long[] deadlocked = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+        if (deadlocked != null) {
+            trigger("deadlock");
+        }
+    }
+
+    private void onGarbageCollection(GarbageCollectionNotificationInfo info) {
+        Duration threshold = gcPauseThreshold;
+        if (threshold != null && isPause(info.getGcName(), info.getGcAction())
+                && info.getGcInfo().getDuration() >= threshold.toMillis()) {
+            trigger("gc");
+        }
+    }
+
+    /*
+        The duration of a notification is the duration of the whole collection. For stop-the-world collections
+        (Serial, Parallel, G1 young and full collections), that's the pause. Concurrent collectors report their cycles
+        as well, which run next to the application - those are left out.
+     */
+    private static boolean isPause(String collector, String action) {
+        return !CONCURRENT_COLLECTORS.contains(collector) && !action.contains("cycle");
+    }
+
+    // returns false if the trigger was ignored because of the cooldown
+    private boolean trigger(String reason) {
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (lastDump != Long.MIN_VALUE && now - lastDump < cooldown.toNanos()) {
+                return false;
+            }
+            lastDump = now;
+        }
+        dump(reason);
+        return true;
+    }
+
+    /**
+     * Writes the last minutes to a file in the background, no matter what the cooldown says.
+     *
+     * @param reason part of the file name
+     * @return future of the file
+     */
+    public CompletableFuture<Path> dump(String reason) {
+        return CompletableFuture.supplyAsync(() -> {
+            Recording running;
+            int number;
+            synchronized (this) {
+                running = recording;
+                number = ++dumpNumber;
+            }
+            if (running == null) {
+                throw new IllegalStateException("Not started");
+            }
+            Path file = directory.resolve("recording-" + LocalDateTime.now().format(FILE_TIME) + "-" + number + "-"
+                    + reason + ".jfr");
+            try {
+                running.dump(file);
+                synchronized (this) {
+                    dumps.addLast(file);
+                    while (dumps.size() > maxDumps) {
+                        Files.deleteIfExists(dumps.removeFirst());
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not write " + file, e);
+            }
+            return file;
+        }, background);
+    }
+
+    /**
+     * @return the dumps that are kept, oldest first
+     */
+    public synchronized List<Path> getDumps() {
+        return new ArrayList<>(dumps);
+    }
+
+    /**
+     * Stops the recording. The dumps are kept.
+     */
+    @Override
+    public synchronized void close() {
+        for (NotificationEmitter emitter : gcEmitters) {
+            try {
+                emitter.removeNotificationListener(gcListener);
+            } catch (ListenerNotFoundException e) {
+                // already removed
+            }
+        }
+        gcEmitters.clear();
+        background.shutdownNow();
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
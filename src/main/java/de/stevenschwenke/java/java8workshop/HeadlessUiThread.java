@@ -0,0 +1,181 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stands in for the FX application thread where there's no screen, for example on a build server.
+ * <p>
+ * Like the FX thread, it's one thread that runs the Runnables given to {@link #execute(Runnable)} (Platform.runLater)
+ * one after the other, in order, and "pulses" once per frame (AnimationTimer). An exception in a Runnable goes to
+ * the uncaught exception handler and doesn't stop the thread. Nothing is rendered, but the statistics show what the
+ * FX thread would have to cope with: how many Runnables, how long the queue got, how many pulses.
+ * <p>
+ * The model classes for C_09_JavaFX take an Executor as UI thread or are called once per frame, so they can be tested
+ * and benchmarked with this class, see C_09_JavaFX_Headless.
+ */
+public class HeadlessUiThread implements Executor, AutoCloseable {
+
+    private final long frameNanos;
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    private final List<Runnable> pulseListeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private final AtomicInteger maxQueueLength = new AtomicInteger();
+    private volatile long executed;
+    private volatile long pulses;
+
+    /**
+     * Pulses 60 times per second, like JavaFX.
+     */
+    public HeadlessUiThread() {
+        this(16, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param frame time between two pulses
+     * @param unit  unit of the frame
+     */
+    public HeadlessUiThread(long frame, TimeUnit unit) {
+        this.frameNanos = unit.toNanos(frame);
+        this.thread = new Thread(this::loop, "headless-ui");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop() {
+        long nextPulse = System.nanoTime() + frameNanos;
+        while (!closed) {
+            Runnable runnable;
+            try {
+                runnable = queue.poll(Math.max(0, nextPulse - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (runnable != null) {
+                run(runnable);
+                executed++;
+            }
+            long now = System.nanoTime();
+            if (now >= nextPulse) {
+                pulseListeners.forEach(this::run);
+                pulses++;
+                // A thread that's behind skips the frames it missed instead of pulsing to catch up.
+                nextPulse = Math.max(nextPulse + frameNanos, now);
+            }
+        }
+    }
+
+    private void run(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (RuntimeException e) {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Runs the runnable on this thread later, like Platform.runLater(...).
+     */
+    @Override
+    public void execute(Runnable runnable) {
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+        queue.add(runnable);
+        maxQueueLength.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    /**
+     * @param listener called once per frame on this thread, like AnimationTimer.handle(...)
+     */
+    public void addPulseListener(Runnable listener) {
+        pulseListeners.add(listener);
+    }
+
+    /**
+     * @return true if called from this thread, like Platform.isFxApplicationThread()
+     */
+    public boolean isUiThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the runnable on this thread and waits until it's done. Everything given to {@link #execute(Runnable)}
+     * before has been run by then. Called on this thread, the runnable runs right away. An exception of the runnable
+     * is thrown here, not handed to the uncaught exception handler.
+     */
+    public void runAndWait(Runnable runnable) throws InterruptedException {
+        if (isUiThread()) {
+            runnable.run();
+            return;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        execute(() -> {
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                failure.set(t);
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+
+    /**
+     * Waits until everything given to {@link #execute(Runnable)} so far has been run.
+     */
+    public void waitForIdle() throws InterruptedException {
+        runAndWait(() -> {
+        });
+    }
+
+    /**
+     * @return number of runnables that have been run, without pulses
+     */
+    public long getExecuted() {
+        return executed;
+    }
+
+    public long getPulses() {
+        return pulses;
+    }
+
+    /**
+     * @return the most runnables that were waiting at the same time
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength.get();
+    }
+
+    /**
+     * Stops the thread. Runnables that are still waiting are not run.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d runnables, max. %d waiting, %d pulses", executed, maxQueueLength.get(), pulses);
+    }
+}
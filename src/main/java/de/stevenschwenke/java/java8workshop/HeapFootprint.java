@@ -0,0 +1,192 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Finds memory that's easy to save in a data structure: duplicate strings and boxed primitives. That's what JOverflow
+ * shows for a heap dump in Mission Control, see C_11_MissionControl - here for one object and everything it
+ * references, without a heap dump.
+ * <ul>
+ * <li>Duplicate strings: several String objects with the same content, for example read from a file or created with
+ * map(...) in a stream. One of them would be enough (String.intern() or a map of known values).</li>
+ * <li>Boxed primitives: an Integer takes 16 bytes plus the reference to it, an int takes 4. A List&lt;Integer&gt; from
+ * boxed().collect(toList()) is about five times bigger than an int[].</li>
+ * </ul>
+ * Collections, maps and arrays are walked through their elements, own classes through their fields. Other classes of
+ * the JDK are not looked into. The byte counts are estimates for a 64 bit JVM with compressed references.
+ */
+public final class HeapFootprint {
+
+    private static final Map<Class<?>, Integer> BOXED_SIZES = new HashMap<>();
+
+    static {
+        for (Class<?> type : new Class<?>[]{Boolean.class, Byte.class, Character.class, Short.class, Integer.class,
+                Float.class}) {
+            BOXED_SIZES.put(type, 16);
+        }
+        BOXED_SIZES.put(Long.class, 24);
+        BOXED_SIZES.put(Double.class, 24);
+    }
+
+    private final long objects;
+    private final Map<Class<?>, Long> boxed;
+    private final long boxedBytes;
+    private final Map<String, Integer> duplicateStrings;
+    private final long duplicateStringBytes;
+
+    private HeapFootprint(long objects, Map<Class<?>, Long> boxed, long boxedBytes,
+                          Map<String, Integer> duplicateStrings, long duplicateStringBytes) {
+        this.objects = objects;
+        this.boxed = boxed;
+        this.boxedBytes = boxedBytes;
+        this.duplicateStrings = duplicateStrings;
+        this.duplicateStringBytes = duplicateStringBytes;
+    }
+
+    /**
+     * @param root object to analyze, with everything it references
+     * @return the footprint
+     */
+    public static HeapFootprint of(Object root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> toVisit = new ArrayDeque<>();
+        Map<String, Integer> strings = new HashMap<>();
+        Map<Class<?>, Long> boxed = new HashMap<>();
+        long boxedBytes = 0;
+        long duplicateStringBytes = 0;
+
+        if (root != null) {
+            toVisit.push(root);
+        }
+        while (!toVisit.isEmpty()) {
+            Object object = toVisit.pop();
+            if (!visited.add(object)) {
+                continue;
+            }
+            Class<?> type = object.getClass();
+            if (object instanceof String) {
+                String string = (String) object;
+                if (strings.merge(string, 1, Integer::sum) > 1) {
+                    // String object, array header and characters
+                    duplicateStringBytes += 24 + 16 + 2L * string.length();
+                }
+            } else if (BOXED_SIZES.containsKey(type)) {
+                boxed.merge(type, 1L, Long::sum);
+                boxedBytes += BOXED_SIZES.get(type);
+            } else if (type.isArray()) {
+                if (!type.getComponentType().isPrimitive()) {
+                    for (int i = 0; i < Array.getLength(object); i++) {
+                        pushIfNotNull(toVisit, Array.get(object, i));
+                    }
+                }
+            } else if (object instanceof Collection) {
+                ((Collection<?>) object).forEach(element -> pushIfNotNull(toVisit, element));
+            } else if (object instanceof Map) {
+                ((Map<?, ?>) object).forEach((key, value) -> {
+                    pushIfNotNull(toVisit, key);
+                    pushIfNotNull(toVisit, value);
+                });
+            } else if (!isJdkClass(type)) {
+                pushFields(toVisit, object, type);
+            }
+        }
+
+        Map<String, Integer> duplicates = strings.entrySet().stream()
+                .filter(entry -> entry.getValue() > 1)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return new HeapFootprint(visited.size(), boxed, boxedBytes, duplicates, duplicateStringBytes);
+    }
+
+    private static void pushIfNotNull(Deque<Object> toVisit, Object object) {
+        if (object != null) {
+            toVisit.push(object);
+        }
+    }
+
+    private static boolean isJdkClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.")
+                || name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    private static void pushFields(Deque<Object> toVisit, Object object, Class<?> type) {
+        for (Class<?> c = type; c != null && !isJdkClass(c); c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    pushIfNotNull(toVisit, field.get(object));
+                } catch (IllegalAccessException | RuntimeException e) {
+                    // not accessible, not counted
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of different objects reached, including the root
+     */
+    public long getObjects() {
+        return objects;
+    }
+
+    /**
+     * @return number of boxed primitive objects per class
+     */
+    public Map<Class<?>, Long> getBoxed() {
+        return Collections.unmodifiableMap(boxed);
+    }
+
+    public long getBoxedBytes() {
+        return boxedBytes;
+    }
+
+    /**
+     * @return content of the duplicate strings and the number of String objects with that content
+     */
+    public Map<String, Integer> getDuplicateStrings() {
+        return Collections.unmodifiableMap(duplicateStrings);
+    }
+
+    /**
+     * @return bytes that would be saved if every content was stored in one String only
+     */
+    public long getDuplicateStringBytes() {
+        return duplicateStringBytes;
+    }
+
+    /**
+     * @param topN number of strings
+     * @return the strings with the most copies, with the number of copies
+     */
+    public List<String> topDuplicateStrings(int topN) {
+        return duplicateStrings.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(topN)
+                .map(entry -> entry.getValue() + "x \"" + entry.getKey() + "\"")
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        long boxedObjects = boxed.values().stream().mapToLong(Long::longValue).sum();
+        return String.format("%,d objects, %,d boxed primitives (~%,d bytes), %,d duplicate strings (~%,d bytes "
+                        + "wasted) %s", objects, boxedObjects, boxedBytes,
+                duplicateStrings.values().stream().mapToInt(copies -> copies - 1).sum(), duplicateStringBytes,
+                topDuplicateStrings(3));
+    }
+}
@@ -0,0 +1,319 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * "contains" filter for large lists, for example the items of a ListView that's filtered while the user types.
+ * <p>
+ * A FilteredList tests its predicate against every element of the backing list whenever the predicate changes - for
+ * every keystroke, on the FX thread. With a million elements that's noticeable. This class
+ * <ul>
+ * <li>keeps an index of all trigrams (three consecutive characters) of all elements. A query of three or more
+ * characters only has to look at the elements that contain all of its trigrams.</li>
+ * <li>narrows the previous result when the new query contains the previous one, which is what happens while
+ * typing</li>
+ * <li>returns the difference to the previous result, so the displayed list only gets the elements that were removed
+ * or added instead of being replaced</li>
+ * </ul>
+ * {@link #filter(String)} is meant to be called off the FX thread, see C_09_JavaFX for the wiring with a
+ * {@link Debouncer}. Results have to be applied in the order they were calculated, because every result is the
+ * difference to the one before.
+ *
+ * @param <T> type of the elements
+ */
+public class IncrementalFilter<T> {
+
+    private static final int[] NONE = new int[0];
+
+    private final List<T> items;
+    private final String[] texts;
+    private final Map<Long, int[]> trigrams;
+
+    private String previousQuery = "";
+    private int[] previousResult;
+
+    /**
+     * Builds the index. Takes a while for large lists, so better not on the FX thread either.
+     *
+     * @param items  all elements, in the order they are displayed. Must not be changed afterwards.
+     * @param toText the text of an element that's searched
+     */
+    public IncrementalFilter(List<? extends T> items, Function<? super T, String> toText) {
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        this.texts = new String[items.size()];
+        Map<Long, IntList> index = new HashMap<>();
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = toText.apply(this.items.get(i));
+            String text = texts[i];
+            for (int c = 0; c + 3 <= text.length(); c++) {
+                IntList postings = index.computeIfAbsent(trigram(text, c), k -> new IntList());
+                // the same trigram twice in one text is listed once
+                if (postings.size == 0 || postings.values[postings.size - 1] != i) {
+                    postings.add(i);
+                }
+            }
+        }
+        this.trigrams = new HashMap<>(index.size() * 2);
+        index.forEach((key, postings) -> trigrams.put(key, postings.toArray()));
+        this.previousResult = all();
+    }
+
+    private static long trigram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    /**
+     * @param query text the elements have to contain, case-sensitive like String.contains(...)
+     * @return elements that contain the query and the difference to the previous result
+     */
+    public synchronized Result<T> filter(String query) {
+        long start = System.nanoTime();
+        int[] candidates;
+        String strategy;
+        if (query.isEmpty()) {
+            candidates = all();
+            strategy = "all";
+        } else if (!previousQuery.isEmpty() && query.contains(previousQuery)) {
+            candidates = previousResult;
+            strategy = "narrowed previous result";
+        } else if (query.length() >= 3) {
+            candidates = fromIndex(query);
+            strategy = "trigram index";
+        } else {
+            candidates = all();
+            strategy = "full scan";
+        }
+
+        int[] matches = new int[candidates.length];
+        int count = 0;
+        for (int i : candidates) {
+            if (texts[i].contains(query)) {
+                matches[count++] = i;
+            }
+        }
+        int[] result = Arrays.copyOf(matches, count);
+
+        List<Edit<T>> edits = diff(previousResult, result);
+        previousQuery = query;
+        previousResult = result;
+        return new Result<>(query, result, edits, candidates.length, strategy, System.nanoTime() - start, items);
+    }
+
+    private int[] all() {
+        int[] all = new int[texts.length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        return all;
+    }
+
+    // Elements that contain all trigrams of the query. Intersecting starts with the shortest list.
+    private int[] fromIndex(String query) {
+        List<int[]> lists = new ArrayList<>();
+        for (int c = 0; c + 3 <= query.length(); c++) {
+            int[] postings = trigrams.get(trigram(query, c));
+            if (postings == null) {
+                return NONE;
+            }
+            lists.add(postings);
+        }
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+        int[] result = lists.get(0);
+        for (int l = 1; l < lists.size() && result.length > 0; l++) {
+            result = intersect(result, lists.get(l));
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                result[count++] = a[i];
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /*
+        Both results are in the order of the backing list, so the difference is found by walking through both at
+        the same time. Neighbouring removals and insertions become one edit.
+     */
+    private List<Edit<T>> diff(int[] before, int[] after) {
+        List<Edit<T>> edits = new ArrayList<>();
+        int position = 0;
+        int removed = 0;
+        List<T> inserted = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < before.length || j < after.length) {
+            if (i < before.length && j < after.length && before[i] == after[j]) {
+                if (removed > 0 || !inserted.isEmpty()) {
+                    edits.add(new Edit<>(position, removed, inserted));
+                    position += inserted.size();
+                    removed = 0;
+                    inserted = new ArrayList<>();
+                }
+                position++;
+                i++;
+                j++;
+            } else if (j >= after.length || (i < before.length && before[i] < after[j])) {
+                removed++;
+                i++;
+            } else {
+                inserted.add(items.get(after[j]));
+                j++;
+            }
+        }
+        if (removed > 0 || !inserted.isEmpty()) {
+            edits.add(new Edit<>(position, removed, inserted));
+        }
+        return edits;
+    }
+
+    /**
+     * Replace removed elements at position with the inserted ones.
+     */
+    public static final class Edit<T> {
+        private final int position;
+        private final int removed;
+        private final List<T> inserted;
+
+        Edit(int position, int removed, List<T> inserted) {
+            this.position = position;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public List<T> getInserted() {
+            return inserted;
+        }
+
+        @Override
+        public String toString() {
+            return "at " + position + " remove " + removed + " insert " + inserted;
+        }
+    }
+
+    /**
+     * Result of one query.
+     */
+    public static final class Result<T> {
+        private final String query;
+        private final int[] indexes;
+        private final List<Edit<T>> edits;
+        private final int candidates;
+        private final String strategy;
+        private final long nanos;
+        private final List<T> items;
+
+        Result(String query, int[] indexes, List<Edit<T>> edits, int candidates, String strategy, long nanos,
+               List<T> items) {
+            this.query = query;
+            this.indexes = indexes;
+            this.edits = Collections.unmodifiableList(edits);
+            this.candidates = candidates;
+            this.strategy = strategy;
+            this.nanos = nanos;
+            this.items = items;
+        }
+
+        /**
+         * Brings a list that shows the previous result up to date. One subList(...).clear() and one addAll(...) per
+         * edit, each is one change event in an ObservableList. With many edits, replacing everything is cheaper.
+         *
+         * @param shown list showing the previous result, for example the items of a ListView
+         */
+        public void applyTo(List<T> shown) {
+            if (edits.size() > 100) {
+                shown.clear();
+                shown.addAll(getMatches());
+                return;
+            }
+            for (Edit<T> edit : edits) {
+                if (edit.removed > 0) {
+                    shown.subList(edit.position, edit.position + edit.removed).clear();
+                }
+                if (!edit.inserted.isEmpty()) {
+                    shown.addAll(edit.position, edit.inserted);
+                }
+            }
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public List<T> getMatches() {
+            List<T> matches = new ArrayList<>(indexes.length);
+            for (int i : indexes) {
+                matches.add(items.get(i));
+            }
+            return matches;
+        }
+
+        public int size() {
+            return indexes.length;
+        }
+
+        public List<Edit<T>> getEdits() {
+            return edits;
+        }
+
+        /**
+         * @return number of elements the query was tested against
+         */
+        public int getCandidates() {
+            return candidates;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("'%s': %d matches, %d candidates (%s), %d edits, %.1f ms", query, indexes.length,
+                    candidates, strategy, edits.size(), nanos / 1e6);
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary index of all places annotated with {@link JavaVersion}, written by {@link JavaVersionScanner}.
+ * <p>
+ * The file is memory-mapped and never parsed as a whole. It consists of
+ * <ul>
+ * <li>a header: magic number, format version and number of entries (3 ints)</li>
+ * <li>one record per annotated place: offset of the version string and offset of the place string (2 ints). The
+ * records are sorted by version, so a version can be found with a binary search.</li>
+ * <li>all strings: length (int) followed by UTF-8 bytes</li>
+ * </ul>
+ */
+public final class JavaVersionIndex {
+
+    /**
+     * Location of the index in the class path.
+     */
+    public static final String RESOURCE = "META-INF/java-version.idx";
+
+    private static final int MAGIC = 0x4A564958; // "JVIX"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int RECORD_SIZE = 2 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int stringsStart;
+
+    private JavaVersionIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Not a JavaVersion index");
+        }
+        this.size = buffer.getInt(2 * Integer.BYTES);
+        this.stringsStart = HEADER_SIZE + size * RECORD_SIZE;
+    }
+
+    /**
+     * Loads the index from the class path. If it's a plain file (as in target/test-classes), it is memory-mapped,
+     * otherwise (for example inside a jar) it is read into memory.
+     *
+     * @return index or an empty index if nothing has been annotated
+     * @throws IOException if reading fails
+     */
+    public static JavaVersionIndex load() throws IOException {
+        URL url = JavaVersionIndex.class.getClassLoader().getResource(RESOURCE);
+        if (url == null) {
+            return wrap(write(Collections.emptyList()));
+        }
+        if ("file".equals(url.getProtocol())) {
+            try (FileChannel channel = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed.
+                return new JavaVersionIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+        try (InputStream in = url.openStream()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            for (int read = in.read(chunk); read != -1; read = in.read(chunk)) {
+                bytes.write(chunk, 0, read);
+            }
+            return wrap(bytes.toByteArray());
+        }
+    }
+
+    static JavaVersionIndex wrap(byte[] bytes) {
+        return new JavaVersionIndex(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * @return number of annotated places
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds all places annotated with the given version with a binary search over the records.
+     *
+     * @param version value of {@link JavaVersion}
+     * @return places like "my.Class#field", sorted
+     */
+    public List<String> find(String version) {
+        byte[] key = utf8(version);
+
+        // lower bound: first record with a version >= key
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(versionOffset(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (int i = low; i < size && compare(versionOffset(i), key) == 0; i++) {
+            result.add(string(buffer.getInt(HEADER_SIZE + i * RECORD_SIZE + Integer.BYTES)));
+        }
+        return result;
+    }
+
+    private int versionOffset(int record) {
+        return buffer.getInt(HEADER_SIZE + record * RECORD_SIZE);
+    }
+
+    // Compares the stored bytes with the key without creating a String.
+    private int compare(int offset, byte[] key) {
+        int position = stringsStart + offset;
+        int length = buffer.getInt(position);
+        position += Integer.BYTES;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int c = Integer.compare(buffer.get(position + i) & 0xFF, key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private String string(int offset) {
+        int position = stringsStart + offset;
+        byte[] bytes = new byte[buffer.getInt(position)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + Integer.BYTES + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the index in the format described above.
+     *
+     * @param entries pairs of version and annotated place
+     * @return the index file
+     */
+    static byte[] write(List<Map.Entry<String, String>> entries) {
+        List<Map.Entry<String, String>> records = new ArrayList<>(entries);
+        // Sort by unsigned UTF-8 bytes - that's the order the binary search in find() relies on.
+        records.sort((a, b) -> {
+            int c = compareBytes(utf8(a.getKey()), utf8(b.getKey()));
+            return c != 0 ? c : compareBytes(utf8(a.getValue()), utf8(b.getValue()));
+        });
+
+        try {
+            ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            DataOutputStream stringsOut = new DataOutputStream(strings);
+            // Every version is written only once, all records point to the same string.
+            Map<String, Integer> offsets = new HashMap<>();
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            DataOutputStream fileOut = new DataOutputStream(file);
+
+            fileOut.writeInt(MAGIC);
+            fileOut.writeInt(FORMAT_VERSION);
+            fileOut.writeInt(records.size());
+            for (Map.Entry<String, String> record : records) {
+                fileOut.writeInt(append(stringsOut, offsets, record.getKey()));
+                fileOut.writeInt(append(stringsOut, offsets, record.getValue()));
+            }
+            strings.writeTo(fileOut);
+            return file.toByteArray();
+        } catch (IOException e) {
+            // can't happen with in-memory streams
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int append(DataOutputStream strings, Map<String, Integer> offsets, String string)
+            throws IOException {
+        Integer known = offsets.get(string);
+        if (known != null) {
+            return known;
+        }
+        int offset = strings.size();
+        byte[] bytes = utf8(string);
+        strings.writeInt(bytes.length);
+        strings.write(bytes);
+        offsets.put(string, offset);
+        return offset;
+    }
+
+    private static byte[] utf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int c = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+}
@@ -0,0 +1,347 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Scans compiled classes for {@link JavaVersion} and writes a {@link JavaVersionIndex}.
+ * <p>
+ * {@link JavaVersion} can be put on the use of a type since Java 8, for example on a cast or a "new" inside of a
+ * method. Annotation processors and reflection don't see these type uses, but the compiler writes them into the
+ * class files ("RuntimeInvisibleTypeAnnotations"). This scanner reads the class files directly, so there's no need
+ * to load a single class. The pom.xml runs it after the test classes have been compiled.
+ * <p>
+ * Usage: {@code JavaVersionScanner <classes directory> <index file>}
+ */
+public final class JavaVersionScanner {
+
+    private static final String ANNOTATION = "L" + JavaVersion.class.getName().replace('.', '/') + ";";
+
+    private final List<Map.Entry<String, String>> entries = new ArrayList<>();
+
+    // constant pool of the class that is currently read, only the strings and class names are needed
+    private String[] utf8;
+    private String[] classNames;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: JavaVersionScanner <classes directory> <index file>");
+        }
+        Path output = Paths.get(args[1]);
+        List<Map.Entry<String, String>> entries = scan(Paths.get(args[0]));
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        Files.write(output, JavaVersionIndex.write(entries));
+        System.out.println("Indexed " + entries.size() + " uses of @JavaVersion in " + output);
+    }
+
+    /**
+     * @param classesDirectory root of compiled classes
+     * @return pairs of version and annotated place
+     * @throws IOException if a class file can't be read
+     */
+    public static List<Map.Entry<String, String>> scan(Path classesDirectory) throws IOException {
+        JavaVersionScanner scanner = new JavaVersionScanner();
+        List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(classesDirectory)) {
+            classFiles = files.filter(f -> f.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+        }
+        for (Path classFile : classFiles) {
+            // read completely, so skipping bytes always works
+            scanner.readClass(new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(classFile))));
+        }
+        return scanner.entries;
+    }
+
+    /*
+        The class file format is described in chapter 4 of the JVM specification:
+        https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html
+     */
+
+    private void readClass(DataInputStream in) throws IOException {
+        if (in.readInt() != 0xCAFEBABE) {
+            return;
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        readConstantPool(in);
+
+        in.readUnsignedShort(); // access flags
+        String className = classNames[in.readUnsignedShort()];
+        in.readUnsignedShort(); // super class
+        skip(in, 2 * in.readUnsignedShort()); // interfaces
+
+        int fields = in.readUnsignedShort();
+        for (int i = 0; i < fields; i++) {
+            readMember(in, className);
+        }
+        int methods = in.readUnsignedShort();
+        for (int i = 0; i < methods; i++) {
+            readMember(in, className);
+        }
+        readAttributes(in, className, new HashSet<>());
+    }
+
+    private void readConstantPool(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        utf8 = new String[count];
+        classNames = new String[count];
+        int[] classNameIndexes = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNameIndexes[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    skip(in, 2);
+                    break;
+                case 15: // MethodHandle
+                    skip(in, 3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    skip(in, 4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    skip(in, 8);
+                    i++; // takes two slots
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        for (int i = 1; i < count; i++) {
+            if (classNameIndexes[i] != 0) {
+                classNames[i] = utf8[classNameIndexes[i]].replace('/', '.');
+            }
+        }
+    }
+
+    private void readMember(DataInputStream in, String className) throws IOException {
+        in.readUnsignedShort(); // access flags
+        String place = className + "#" + utf8[in.readUnsignedShort()];
+        in.readUnsignedShort(); // descriptor
+        readAttributes(in, place, new HashSet<>());
+    }
+
+    /**
+     * @param place        description of the class or member the attributes belong to
+     * @param declarations versions found on the declaration, used to skip the same annotation on its type
+     */
+    private void readAttributes(DataInputStream in, String place, Set<String> declarations) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String name = utf8[in.readUnsignedShort()];
+            int length = in.readInt();
+            switch (name) {
+                case "RuntimeVisibleAnnotations":
+                case "RuntimeInvisibleAnnotations":
+                    for (String version : readAnnotations(in)) {
+                        declarations.add(version);
+                        add(version, place);
+                    }
+                    break;
+                case "RuntimeVisibleParameterAnnotations":
+                case "RuntimeInvisibleParameterAnnotations":
+                    int parameters = in.readUnsignedByte();
+                    for (int p = 0; p < parameters; p++) {
+                        for (String version : readAnnotations(in)) {
+                            declarations.add("parameter " + p + " " + version);
+                            add(version, place + "(parameter " + p + ")");
+                        }
+                    }
+                    break;
+                case "RuntimeVisibleTypeAnnotations":
+                case "RuntimeInvisibleTypeAnnotations":
+                    readTypeAnnotations(in, place, declarations);
+                    break;
+                case "Code":
+                    skip(in, 4); // max stack, max locals
+                    skip(in, in.readInt()); // byte code
+                    skip(in, 8 * in.readUnsignedShort()); // exception table
+                    // type uses inside of the method body are attributes of the code
+                    readAttributes(in, place, declarations);
+                    break;
+                default:
+                    skip(in, length);
+            }
+        }
+    }
+
+    private List<String> readAnnotations(DataInputStream in) throws IOException {
+        List<String> versions = new ArrayList<>();
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String version = readAnnotation(in);
+            if (version != null) {
+                versions.add(version);
+            }
+        }
+        return versions;
+    }
+
+    private void readTypeAnnotations(DataInputStream in, String place, Set<String> declarations) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            int targetType = in.readUnsignedByte();
+            String position = readTargetInfo(in, targetType);
+            int pathLength = in.readUnsignedByte();
+            skip(in, 2 * pathLength);
+            String version = readAnnotation(in);
+            if (version == null) {
+                continue;
+            }
+
+            // "@JavaVersion String field" is a declaration annotation and a type use at the same time. The compiler
+            // writes both, but it's only one annotation in the source code.
+            boolean sameAsDeclaration = pathLength == 0 && (
+                    (targetType == 0x13 || targetType == 0x14) && declarations.contains(version)
+                            || position.startsWith("(parameter ") && declarations.contains(
+                            position.substring(1, position.indexOf(')')) + " " + version));
+            if (!sameAsDeclaration) {
+                add(version, place + " " + position + (pathLength > 0 ? " type argument" : ""));
+            }
+        }
+    }
+
+    // Reads the target_info and describes where the type is used.
+    private String readTargetInfo(DataInputStream in, int targetType) throws IOException {
+        switch (targetType) {
+            case 0x00:
+            case 0x01:
+                return "<type parameter " + in.readUnsignedByte() + ">";
+            case 0x10:
+                int supertype = in.readUnsignedShort();
+                return supertype == 0xFFFF ? "extends" : "implements";
+            case 0x11:
+            case 0x12:
+                skip(in, 2);
+                return "type parameter bound";
+            case 0x13:
+                return "type";
+            case 0x14:
+                return "return type";
+            case 0x15:
+                return "receiver";
+            case 0x16:
+                return "(parameter " + in.readUnsignedByte() + ") type";
+            case 0x17:
+                skip(in, 2);
+                return "throws";
+            case 0x40:
+            case 0x41:
+                skip(in, 6 * in.readUnsignedShort());
+                return targetType == 0x40 ? "local variable" : "resource variable";
+            case 0x42:
+                skip(in, 2);
+                return "catch";
+            case 0x43:
+                skip(in, 2);
+                return "instanceof";
+            case 0x44:
+                skip(in, 2);
+                return "new";
+            case 0x45:
+            case 0x46:
+                skip(in, 2);
+                return "method reference";
+            case 0x47:
+                skip(in, 3);
+                return "cast";
+            case 0x48:
+            case 0x49:
+            case 0x4A:
+            case 0x4B:
+                skip(in, 3);
+                return "type argument of call";
+            default:
+                throw new IOException("Unknown type annotation target " + targetType);
+        }
+    }
+
+    /**
+     * @return value of the annotation if it's a {@link JavaVersion}, null otherwise
+     */
+    private String readAnnotation(DataInputStream in) throws IOException {
+        boolean javaVersion = ANNOTATION.equals(utf8[in.readUnsignedShort()]);
+        String value = null;
+        int pairs = in.readUnsignedShort();
+        for (int i = 0; i < pairs; i++) {
+            String name = utf8[in.readUnsignedShort()];
+            String elementValue = readElementValue(in);
+            if (javaVersion && "value".equals(name)) {
+                value = elementValue;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the value if it's a string constant, null otherwise
+     */
+    private String readElementValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 's':
+                return utf8[in.readUnsignedShort()];
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'F':
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'Z':
+            case 'c':
+                skip(in, 2);
+                return null;
+            case 'e':
+                skip(in, 4);
+                return null;
+            case '@':
+                readAnnotation(in);
+                return null;
+            case '[':
+                int values = in.readUnsignedShort();
+                for (int i = 0; i < values; i++) {
+                    readElementValue(in);
+                }
+                return null;
+            default:
+                throw new IOException("Unknown element value tag " + (char) tag);
+        }
+    }
+
+    private void add(String version, String place) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(version, place));
+    }
+
+    private static void skip(DataInputStream in, int bytes) throws IOException {
+        in.skipBytes(bytes);
+    }
+}
@@ -0,0 +1,139 @@
+package de.stevenschwenke.java.java8workshop;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * The events of {@link FlightEvents} for the Flight Recorder API jdk.jfr. Only loaded by FlightEvents, and only if the
+ * JVM has that API.
+ */
+final class JfrEvents implements FlightEvents.Recorder {
+
+    @Name("de.stevenschwenke.java8workshop.StreamPipeline")
+    @Label("Stream Pipeline")
+    @Description("Terminal operation of a StreamPipeline")
+    @Category({"Java 8 Workshop", "Streams"})
+    @StackTrace(false)
+    public static class StreamPipelineEvent extends Event {
+        @Label("Terminal Operation")
+        String terminal;
+
+        @Label("Plan")
+        String plan;
+
+        @Label("Source Size")
+        @Description("Number of elements of the source, -1 if unknown")
+        long sourceSize;
+
+        @Label("Parallel")
+        boolean parallel;
+
+        @Label("Parallelism")
+        int parallelism;
+    }
+
+    @Name("de.stevenschwenke.java8workshop.Task")
+    @Label("Executor Task")
+    @Description("Task of an executor, the duration is the time it ran")
+    @Category({"Java 8 Workshop", "Executors"})
+    @StackTrace(false)
+    public static class TaskEvent extends Event {
+        @Label("Executor")
+        String executor;
+
+        @Label("Task")
+        @Description("What the tasks of this executor do")
+        String task;
+
+        @Label("Queue Wait")
+        @Description("Time between submitting the task and its start")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+    }
+
+    @Name("de.stevenschwenke.java8workshop.ScriptEvaluation")
+    @Label("Script Evaluation")
+    @Category({"Java 8 Workshop", "Scripts"})
+    @StackTrace(false)
+    public static class ScriptEvaluationEvent extends Event {
+        @Label("Engine")
+        String engine;
+
+        @Label("Script")
+        @Description("Source of the script, shortened to 200 characters")
+        String script;
+
+        @Label("Variables")
+        int variables;
+    }
+
+    private static <E extends Event> E begin(E event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public Object beginStreamPipeline() {
+        return begin(new StreamPipelineEvent());
+    }
+
+    @Override
+    public void commitStreamPipeline(Object recorded, String terminal, Supplier<String> plan, long sourceSize,
+                                     boolean parallel) {
+        StreamPipelineEvent event = (StreamPipelineEvent) recorded;
+        event.end();
+        if (event.shouldCommit()) {
+            event.terminal = terminal;
+            event.plan = plan.get();
+            event.sourceSize = sourceSize;
+            event.parallel = parallel;
+            event.parallelism = parallel ? ForkJoinPool.getCommonPoolParallelism() : 1;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginTask() {
+        return begin(new TaskEvent());
+    }
+
+    @Override
+    public void commitTask(Object recorded, String executor, String task, long queueWait) {
+        TaskEvent event = (TaskEvent) recorded;
+        event.end();
+        if (event.shouldCommit()) {
+            event.executor = executor;
+            event.task = task;
+            event.queueWait = queueWait;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginScriptEvaluation() {
+        return begin(new ScriptEvaluationEvent());
+    }
+
+    @Override
+    public void commitScriptEvaluation(Object recorded, String engine, String script, int variables) {
+        ScriptEvaluationEvent event = (ScriptEvaluationEvent) recorded;
+        event.end();
+        if (event.shouldCommit()) {
+            event.engine = engine;
+            event.script = script;
+            event.variables = variables;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Fuses chains of {@link Predicate}s and {@link Function}s into one lambda.
+ * <p>
+ * Chains built with {@link Predicate#and(Predicate)} or {@link Function#andThen(Function)} are lambdas that call
+ * other lambdas, one wrapper object per link. Here, the chain is recorded as a tree of {@link MethodHandle}s first,
+ * combined with guardWithTest(...) and filterReturnValue(...) instead of wrappers. {@link FusablePredicate#fuse()}
+ * then wraps the whole tree in one lambda, created by the {@link LambdaMetafactory} like the lambdas of javac.
+ * <p>
+ * Don't expect too much from it: the lambda calls the tree through a bridge method that gets the tree as an argument,
+ * not as a constant, so the JIT can't always inline it. A stream pipeline calls all its lambdas from the same few
+ * call sites in the JDK anyway. C_01_FunctionalInterfacesAndLambdas#fusedChainPerformance compares a deep chain with
+ * and(...) and a fused one - measure before relying on it.
+ */
+public final class LambdaFusion {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType PREDICATE_LEAF = MethodType.methodType(boolean.class, Object.class);
+    private static final MethodType FUNCTION_LEAF = MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodHandle PREDICATE_TEST;
+    private static final MethodHandle FUNCTION_APPLY;
+    private static final MethodHandle NOT;
+    private static final MethodHandle INVOKE_PREDICATE_TREE;
+    private static final MethodHandle INVOKE_FUNCTION_TREE;
+    private static final MethodHandle PREDICATE_FACTORY;
+    private static final MethodHandle FUNCTION_FACTORY;
+
+    static {
+        try {
+            PREDICATE_TEST = LOOKUP.findVirtual(Predicate.class, "test", PREDICATE_LEAF);
+            FUNCTION_APPLY = LOOKUP.findVirtual(Function.class, "apply", FUNCTION_LEAF);
+            NOT = LOOKUP.findStatic(LambdaFusion.class, "not",
+                    MethodType.methodType(boolean.class, boolean.class));
+            INVOKE_PREDICATE_TREE = LOOKUP.findStatic(LambdaFusion.class, "invokePredicateTree",
+                    MethodType.methodType(boolean.class, MethodHandle.class, Object.class));
+            INVOKE_FUNCTION_TREE = LOOKUP.findStatic(LambdaFusion.class, "invokeFunctionTree",
+                    MethodType.methodType(Object.class, MethodHandle.class, Object.class));
+            PREDICATE_FACTORY = factory(Predicate.class, "test", PREDICATE_LEAF, INVOKE_PREDICATE_TREE);
+            FUNCTION_FACTORY = factory(Function.class, "apply", FUNCTION_LEAF, INVOKE_FUNCTION_TREE);
+        } catch (NoSuchMethodException | IllegalAccessException | LambdaConversionException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private LambdaFusion() {
+        // only static factories
+    }
+
+    /**
+     * Starts a fusable predicate chain.
+     *
+     * @param predicate first link of the chain
+     * @param <T>       type of the tested elements
+     * @return chain that can be combined and fused
+     */
+    public static <T> FusablePredicate<T> predicate(Predicate<? super T> predicate) {
+        return new FusablePredicate<>(PREDICATE_TEST.bindTo(predicate));
+    }
+
+    /**
+     * Starts a fusable function chain.
+     *
+     * @param function first link of the chain
+     * @param <T>      input type
+     * @param <R>      output type
+     * @return chain that can be combined and fused
+     */
+    public static <T, R> FusableFunction<T, R> function(Function<? super T, ? extends R> function) {
+        return new FusableFunction<>(FUNCTION_APPLY.bindTo(function));
+    }
+
+    /**
+     * Predicate chain that is recorded as a tree of {@link MethodHandle}s instead of nested lambdas.
+     *
+     * @param <T> type of the tested elements
+     */
+    public static final class FusablePredicate<T> {
+
+        // (Object)boolean
+        private final MethodHandle tree;
+
+        private FusablePredicate(MethodHandle tree) {
+            this.tree = tree;
+        }
+
+        public FusablePredicate<T> and(Predicate<? super T> other) {
+            return and(predicate(other));
+        }
+
+        public FusablePredicate<T> and(FusablePredicate<? super T> other) {
+            // if (this) then other else false - evaluation short-circuits just like &&
+            return new FusablePredicate<>(MethodHandles.guardWithTest(tree, other.tree, constant(false)));
+        }
+
+        public FusablePredicate<T> or(Predicate<? super T> other) {
+            return or(predicate(other));
+        }
+
+        public FusablePredicate<T> or(FusablePredicate<? super T> other) {
+            // if (this) then true else other - short-circuits just like ||
+            return new FusablePredicate<>(MethodHandles.guardWithTest(tree, constant(true), other.tree));
+        }
+
+        public FusablePredicate<T> negate() {
+            return new FusablePredicate<>(MethodHandles.filterReturnValue(tree, NOT));
+        }
+
+        /**
+         * @return the whole chain as one lambda
+         */
+        @SuppressWarnings("unchecked")
+        public Predicate<T> fuse() {
+            return (Predicate<T>) create(PREDICATE_FACTORY, tree);
+        }
+
+        private static MethodHandle constant(boolean value) {
+            return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, value), 0, Object.class);
+        }
+    }
+
+    /**
+     * Function chain that is recorded as a tree of {@link MethodHandle}s instead of nested lambdas.
+     *
+     * @param <T> input type
+     * @param <R> output type
+     */
+    public static final class FusableFunction<T, R> {
+
+        // (Object)Object
+        private final MethodHandle tree;
+
+        private FusableFunction(MethodHandle tree) {
+            this.tree = tree;
+        }
+
+        public <V> FusableFunction<T, V> andThen(Function<? super R, ? extends V> after) {
+            return andThen(function(after));
+        }
+
+        public <V> FusableFunction<T, V> andThen(FusableFunction<? super R, ? extends V> after) {
+            return new FusableFunction<>(MethodHandles.filterReturnValue(tree, after.tree));
+        }
+
+        public <V> FusableFunction<V, R> compose(Function<? super V, ? extends T> before) {
+            return LambdaFusion.<V, T>function(before).andThen(this);
+        }
+
+        /**
+         * @return the whole chain as one lambda
+         */
+        @SuppressWarnings("unchecked")
+        public Function<T, R> fuse() {
+            return (Function<T, R>) create(FUNCTION_FACTORY, tree);
+        }
+    }
+
+    /**
+     * Lets the {@link LambdaMetafactory} generate a class that implements the given functional interface by calling
+     * the given bridge method with a captured tree. That's exactly what javac's invokedynamic does for a capturing
+     * lambda. The class doesn't depend on the tree, so it's generated once per interface: fusing a chain only creates
+     * an object, no class. That matters for StreamPipeline, which fuses the maps of every pipeline it runs.
+     *
+     * @return factory (MethodHandle)functionalInterface
+     */
+    private static MethodHandle factory(Class<?> functionalInterface, String methodName, MethodType erasedType,
+                                        MethodHandle bridge) throws LambdaConversionException {
+        CallSite site = LambdaMetafactory.metafactory(LOOKUP, methodName,
+                MethodType.methodType(functionalInterface, MethodHandle.class), erasedType, bridge, erasedType);
+        return site.getTarget();
+    }
+
+    private static Object create(MethodHandle factory, MethodHandle tree) {
+        try {
+            return factory.invoke(tree);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static boolean invokePredicateTree(MethodHandle tree, Object t) throws Throwable {
+        return (boolean) tree.invokeExact(t);
+    }
+
+    private static Object invokeFunctionTree(MethodHandle tree, Object t) throws Throwable {
+        return tree.invokeExact(t);
+    }
+
+    private static boolean not(boolean b) {
+        return !b;
+    }
+}
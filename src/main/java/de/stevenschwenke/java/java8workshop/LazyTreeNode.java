@@ -0,0 +1,226 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Node of a huge tree that loads its children page by page, when they are needed.
+ * <p>
+ * The TreeTableView in C_09_JavaFX builds all TreeItems up front. For trees with millions of nodes, that takes
+ * forever and fills the heap. This node asks a {@link ChildProvider} for one page of children at a time, the first
+ * one when the children are needed for the first time. When a node is collapsed, its children are only softly
+ * referenced: the garbage collector throws them away when memory gets low, and they are loaded again when the node is
+ * expanded again. Aggregates like the number of descendants are calculated in the background directly from the
+ * provider, without loading nodes. C_09_JavaFX wraps it in a TreeItem.
+ *
+ * @param <T> type of the values
+ */
+public class LazyTreeNode<T> {
+
+    /**
+     * Source of the tree, for example a database or a file system.
+     *
+     * @param <T> type of the values
+     */
+    public interface ChildProvider<T> {
+        boolean isLeaf(T value);
+
+        /**
+         * @return at most limit children starting at offset. Fewer than limit means there are no more.
+         */
+        List<T> children(T parent, int offset, int limit);
+    }
+
+    /**
+     * Aggregate of a subtree, for example the number of nodes or the sum of file sizes.
+     *
+     * @param <T> type of the values
+     * @param <A> type of the aggregate
+     */
+    public interface Aggregation<T, A> {
+        A of(T value);
+
+        A combine(A a, A b);
+    }
+
+    private final T value;
+    private final ChildProvider<T> provider;
+    private final int pageSize;
+
+    // Only one of them is used: the children of an expanded node are kept, the ones of a collapsed node only softly.
+    private List<LazyTreeNode<T>> children;
+    private SoftReference<List<LazyTreeNode<T>>> evicted;
+    private boolean complete;
+    private boolean expanded;
+    private final Map<Aggregation<T, ?>, CompletableFuture<?>> aggregates = new ConcurrentHashMap<>();
+
+    /**
+     * @param value    value of the node
+     * @param provider loads the children
+     * @param pageSize number of children loaded at once
+     */
+    public LazyTreeNode(T value, ChildProvider<T> provider, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize has to be positive: " + pageSize);
+        }
+        this.value = value;
+        this.provider = provider;
+        this.pageSize = pageSize;
+    }
+
+    public T getValue() {
+        return value;
+    }
+
+    public boolean isLeaf() {
+        return provider.isLeaf(value);
+    }
+
+    /**
+     * @return the children loaded so far, at least the first page
+     */
+    public synchronized List<LazyTreeNode<T>> getLoadedChildren() {
+        return Collections.unmodifiableList(new ArrayList<>(children()));
+    }
+
+    public synchronized boolean hasMoreChildren() {
+        children();
+        return !complete;
+    }
+
+    /**
+     * @return the children of the next page, empty if all children are loaded
+     */
+    public synchronized List<LazyTreeNode<T>> loadNextPage() {
+        return loadNextPage(children());
+    }
+
+    // Looking at a collapsed node doesn't pin its children, they stay softly referenced.
+    private List<LazyTreeNode<T>> children() {
+        List<LazyTreeNode<T>> result = expanded ? children : evicted == null ? null : evicted.get();
+        if (result == null) {
+            result = new ArrayList<>();
+            if (expanded) {
+                children = result;
+            } else {
+                evicted = new SoftReference<>(result);
+            }
+            complete = false;
+            loadNextPage(result);
+        }
+        return result;
+    }
+
+    private List<LazyTreeNode<T>> loadNextPage(List<LazyTreeNode<T>> loadedChildren) {
+        if (complete || isLeaf()) {
+            complete = true;
+            return Collections.emptyList();
+        }
+        List<T> page = provider.children(value, loadedChildren.size(), pageSize);
+        complete = page.size() < pageSize;
+        List<LazyTreeNode<T>> loaded = new ArrayList<>(page.size());
+        for (T child : page) {
+            loaded.add(new LazyTreeNode<>(child, provider, pageSize));
+        }
+        loadedChildren.addAll(loaded);
+        return loaded;
+    }
+
+    public synchronized boolean isExpanded() {
+        return expanded;
+    }
+
+    /**
+     * A collapsed node keeps its children only as long as there's enough memory.
+     *
+     * @param expanded new state
+     */
+    public synchronized void setExpanded(boolean expanded) {
+        if (expanded == this.expanded) {
+            return;
+        }
+        this.expanded = expanded;
+        if (expanded) {
+            children = evicted == null ? null : evicted.get();
+            evicted = null;
+        } else if (children != null) {
+            evicted = new SoftReference<>(children);
+            children = null;
+        }
+    }
+
+    /**
+     * Throws away the children of all collapsed nodes right away instead of waiting for the garbage collector, for
+     * example when a memory warning arrives.
+     */
+    public synchronized void evictCollapsed() {
+        if (evicted != null) {
+            evicted.clear();
+            evicted = null;
+        }
+        if (children != null) {
+            for (LazyTreeNode<T> child : children) {
+                child.evictCollapsed();
+            }
+        }
+    }
+
+    /**
+     * @return number of nodes of this subtree that are in memory, including this one
+     */
+    public synchronized int getLoadedNodeCount() {
+        int count = 1;
+        List<LazyTreeNode<T>> loaded = children != null ? children : evicted != null ? evicted.get() : null;
+        if (loaded != null) {
+            for (LazyTreeNode<T> child : loaded) {
+                count += child.getLoadedNodeCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Calculates the aggregate of the whole subtree in the background. It's calculated once per aggregation, later
+     * calls return the same future.
+     *
+     * @param aggregation what to calculate
+     * @param executor    where to calculate it
+     * @param <A>         type of the aggregate
+     * @return future of the aggregate
+     */
+    @SuppressWarnings("unchecked")
+    public <A> CompletableFuture<A> aggregate(Aggregation<T, A> aggregation, Executor executor) {
+        return (CompletableFuture<A>) aggregates.computeIfAbsent(aggregation,
+                a -> CompletableFuture.supplyAsync(() -> aggregate(value, aggregation), executor));
+    }
+
+    // Walks the provider, not the nodes: the subtree might not be loaded at all.
+    private <A> A aggregate(T node, Aggregation<T, A> aggregation) {
+        A result = aggregation.of(node);
+        if (provider.isLeaf(node)) {
+            return result;
+        }
+        int offset = 0;
+        while (true) {
+            List<T> page = provider.children(node, offset, pageSize);
+            for (T child : page) {
+                result = aggregation.combine(result, aggregate(child, aggregation));
+            }
+            if (page.size() < pageSize) {
+                return result;
+            }
+            offset += page.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,144 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Sum, minimum or maximum of primitive numbers without {@link java.util.Optional} and without boxing.
+ * <p>
+ * {@code Stream<Integer>.reduce(Integer::sum)} boxes every element and wraps the result in an Optional, just to tell
+ * whether there was an element at all. This class keeps the result in a primitive field plus a flag for "empty". One
+ * instance can be reused with {@link #reset()}, so a tight loop doesn't allocate anything - no matter whether the JIT
+ * manages to get rid of the allocations or not.
+ * <p>
+ * Not thread-safe. For parallel streams use
+ * {@code intStream.collect(LongReduction::sum, LongReduction::accept, LongReduction::combine)}.
+ */
+public final class LongReduction implements IntConsumer, LongConsumer {
+
+    private enum Operation {SUM, MIN, MAX}
+
+    private final Operation operation;
+    private long value;
+    private long count;
+
+    private LongReduction(Operation operation) {
+        this.operation = operation;
+    }
+
+    public static LongReduction sum() {
+        return new LongReduction(Operation.SUM);
+    }
+
+    public static LongReduction min() {
+        return new LongReduction(Operation.MIN);
+    }
+
+    public static LongReduction max() {
+        return new LongReduction(Operation.MAX);
+    }
+
+    @Override
+    public void accept(int value) {
+        accept((long) value);
+    }
+
+    @Override
+    public void accept(long value) {
+        if (count++ == 0) {
+            this.value = value;
+            return;
+        }
+        switch (operation) {
+            case SUM:
+                this.value += value;
+                break;
+            case MIN:
+                this.value = Math.min(this.value, value);
+                break;
+            case MAX:
+                this.value = Math.max(this.value, value);
+                break;
+        }
+    }
+
+    /**
+     * Adds all values to the current result.
+     *
+     * @param values to reduce
+     * @return this, for chaining
+     */
+    public LongReduction acceptAll(int... values) {
+        for (int v : values) {
+            accept(v);
+        }
+        return this;
+    }
+
+    /**
+     * Adds the result of another reduction of the same kind, for example from another thread.
+     *
+     * @param other reduction to add
+     */
+    public void combine(LongReduction other) {
+        if (other.operation != operation) {
+            throw new IllegalArgumentException("Can't combine " + operation + " with " + other.operation);
+        }
+        if (other.count > 0) {
+            long otherCount = other.count;
+            accept(other.value);
+            count += otherCount - 1;
+        }
+    }
+
+    /**
+     * Starts over, so the instance can be reused.
+     *
+     * @return this, for chaining
+     */
+    public LongReduction reset() {
+        value = 0;
+        count = 0;
+        return this;
+    }
+
+    public boolean isPresent() {
+        return count > 0;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return number of reduced values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the result
+     * @throws NoSuchElementException if no value has been reduced
+     */
+    public long getAsLong() {
+        if (count == 0) {
+            throw new NoSuchElementException("No value present");
+        }
+        return value;
+    }
+
+    /**
+     * @param other sentinel for "no value"
+     * @return the result or the sentinel if no value has been reduced
+     */
+    public long orElse(long other) {
+        return count == 0 ? other : value;
+    }
+
+    @Override
+    public String toString() {
+        return count == 0 ? operation + "[empty]" : operation + "[" + value + "]";
+    }
+}
@@ -0,0 +1,234 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Finds lambdas in streams that change state.
+ * <p>
+ * Lambdas given to a stream should neither change the elements nor anything else, see C_04_Streams.nonInterference().
+ * In a sequential stream that's bad style, in a parallel stream it's a data race. This checker wraps lambdas, records
+ * the state of the element and of the variables the lambda captured before calling it and compares it afterwards.
+ * Every difference is a violation:
+ * <pre>
+ * NonInterferenceChecker checker = new NonInterferenceChecker();
+ * stream.peek(checker.consumer("peek", x -&gt; x.setX(42))).forEach(...);
+ * checker.verify(); // throws IllegalStateException: peek changed element.x from 1 to 42
+ * </pre>
+ * The state is read with reflection, which is slow. Use the checker in tests, not in production. With a sample rate
+ * of n only every n-th call is checked.
+ */
+public class NonInterferenceChecker {
+
+    private static final int MAX_DEPTH = 4;
+    private static final int MAX_VIOLATIONS = 100;
+    private static final Set<Class<?>> IMMUTABLE_VALUES = new HashSet<>(Arrays.asList(String.class, Boolean.class,
+            Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            BigInteger.class, BigDecimal.class));
+
+    private final int sampleRate;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong violationCount = new AtomicLong();
+    private final Queue<String> violations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Checks every call.
+     */
+    public NonInterferenceChecker() {
+        this(1);
+    }
+
+    /**
+     * @param sampleRate only every sampleRate-th call is checked
+     */
+    public NonInterferenceChecker(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate has to be positive: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public <T> Predicate<T> predicate(String name, Predicate<T> predicate) {
+        return element -> check(name, predicate, element, () -> predicate.test(element));
+    }
+
+    public <T, R> Function<T, R> function(String name, Function<T, R> function) {
+        return element -> check(name, function, element, () -> function.apply(element));
+    }
+
+    public <T> Consumer<T> consumer(String name, Consumer<T> consumer) {
+        return element -> check(name, consumer, element, () -> {
+            consumer.accept(element);
+            return null;
+        });
+    }
+
+    private <R> R check(String name, Object lambda, Object element, Supplier<R> call) {
+        if (calls.getAndIncrement() % sampleRate != 0) {
+            return call.get();
+        }
+        Map<String, Object> elementBefore = state("element", element);
+        Map<String, Object> capturedBefore = captured(lambda);
+        R result = call.get();
+        compare(name, elementBefore, state("element", element));
+        compare(name, capturedBefore, captured(lambda));
+        return result;
+    }
+
+    /**
+     * @return the violations found so far, at most the first 100
+     */
+    public List<String> getViolations() {
+        return new ArrayList<>(violations);
+    }
+
+    /**
+     * @throws IllegalStateException if a violation has been found
+     */
+    public void verify() {
+        long count = violationCount.get();
+        if (count > 0) {
+            StringBuilder message = new StringBuilder(count + " lambda(s) changed state:");
+            for (String violation : violations) {
+                message.append("\n  ").append(violation);
+            }
+            throw new IllegalStateException(message.toString());
+        }
+    }
+
+    private void compare(String name, Map<String, Object> before, Map<String, Object> after) {
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            Object old = before.get(entry.getKey());
+            if (!before.containsKey(entry.getKey()) || !Objects.equals(old, entry.getValue())) {
+                report(name + " changed " + entry.getKey() + " from " + old + " to " + entry.getValue());
+            }
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                report(name + " removed " + key);
+            }
+        }
+    }
+
+    private void report(String violation) {
+        if (violationCount.incrementAndGet() <= MAX_VIOLATIONS) {
+            violations.add(violation);
+        }
+    }
+
+    // The variables captured by a lambda are fields of the lambda object.
+    private static Map<String, Object> captured(Object lambda) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        Map<Object, String> visited = new IdentityHashMap<>();
+        for (Field field : fields(lambda.getClass())) {
+            record(state, visited, "captured " + field.getName(), read(field, lambda), 1);
+        }
+        return state;
+    }
+
+    private static Map<String, Object> state(String path, Object object) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        record(state, new IdentityHashMap<>(), path, object, 0);
+        return state;
+    }
+
+    /*
+        Flattens an object graph into path -> value. Immutable values like String or Integer are compared with
+        equals(), other JDK classes by toString(), collections and arrays element by element, everything else field by field.
+     */
+    private static void record(Map<String, Object> state, Map<Object, String> visited, String path, Object value,
+                               int depth) {
+        if (value == null || isValue(value)) {
+            state.put(path, value);
+            return;
+        }
+        String seen = visited.putIfAbsent(value, path);
+        if (seen != null) {
+            state.put(path, "same as " + seen);
+            return;
+        }
+        if (depth >= MAX_DEPTH) {
+            state.put(path, value.getClass().getName() + "@" + System.identityHashCode(value));
+            return;
+        }
+        if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            state.put(path + ".length", length);
+            for (int i = 0; i < length; i++) {
+                record(state, visited, path + "[" + i + "]", Array.get(value, i), depth + 1);
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            state.put(path + ".size()", collection.size());
+            int i = 0;
+            for (Object element : collection.toArray()) {
+                record(state, visited, path + "[" + i++ + "]", element, depth + 1);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            state.put(path + ".size()", map.size());
+            for (Map.Entry<?, ?> entry : new ArrayList<>(map.entrySet())) {
+                record(state, visited, path + "[" + entry.getKey() + "]", entry.getValue(), depth + 1);
+            }
+        } else if (isJdkClass(value.getClass())) {
+            // the internals of the JDK can't be read with reflection in newer Java versions
+            state.put(path, String.valueOf(value));
+        } else {
+            for (Field field : fields(value.getClass())) {
+                record(state, visited, path + "." + field.getName(), read(field, value), depth + 1);
+            }
+        }
+    }
+
+    // Only immutable classes. Mutable JDK classes like AtomicInteger or StringBuilder are recorded by toString().
+    private static boolean isValue(Object value) {
+        return IMMUTABLE_VALUES.contains(value.getClass()) || value instanceof Enum || value instanceof Class;
+    }
+
+    private static boolean isJdkClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.")
+                || name.startsWith("jdk.");
+    }
+
+    private static List<Field> fields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class && !isJdkClass(c); c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static Object read(Field field, Object object) {
+        try {
+            field.setAccessible(true);
+            return field.get(object);
+        } catch (IllegalAccessException | RuntimeException e) {
+            return "<not readable: " + e.getClass().getSimpleName() + ">";
+        }
+    }
+}
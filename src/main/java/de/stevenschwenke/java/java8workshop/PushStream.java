@@ -0,0 +1,707 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Stream that pushes its elements to a subscriber - but only as many as the subscriber asked for.
+ * <p>
+ * A java.util.stream.Stream is pulled: the terminal operation asks for one element after the other. A
+ * CompletableFuture pushes its result whenever it's ready. Connecting the two naively means collecting everything
+ * that's pushed in a queue - and if the producer is faster than the consumer, the queue grows until the memory is
+ * full. This class follows the idea of Reactive Streams (http://www.reactive-streams.org, in Java 9 as
+ * java.util.concurrent.Flow): the subscriber signals its demand with {@link Subscription#request(long)} and the
+ * producer never sends more than that ("back-pressure").
+ * <pre>
+ * PushStream.fromIterable(ids)
+ *     .mapAsync(id -&gt; loadAsync(id), 4)   // at most 4 calls at the same time
+ *     .filter(customer -&gt; customer.isActive())
+ *     .toStream(16)                        // at most 16 elements buffered
+ *     .forEach(...);
+ * </pre>
+ *
+ * @param <T> type of the elements
+ */
+public abstract class PushStream<T> {
+
+    /**
+     * Receives the elements. The methods are never called concurrently for one subscriber.
+     */
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T element);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    /**
+     * Connection between a stream and one subscriber.
+     */
+    public interface Subscription {
+        /**
+         * @param n number of further elements the subscriber is able to take, Long.MAX_VALUE for unlimited
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * Starts the flow of elements to the subscriber. Nothing is produced before the subscriber requests elements.
+     *
+     * @param subscriber receives the elements
+     */
+    public abstract void subscribe(Subscriber<? super T> subscriber);
+
+    // Sources
+
+    public static <T> PushStream<T> fromIterable(Iterable<? extends T> iterable) {
+        return new PushStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                subscriber.onSubscribe(new IteratorSubscription<>(subscriber, iterable.iterator(), () -> {
+                }));
+            }
+        };
+    }
+
+    /**
+     * @param stream is only pulled on demand and closed when it's exhausted or the subscription is cancelled. Can
+     *               be subscribed only once.
+     * @param <T>    type of the elements
+     * @return push stream of the elements of the stream
+     */
+    public static <T> PushStream<T> fromStream(Stream<? extends T> stream) {
+        return new PushStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                subscriber.onSubscribe(new IteratorSubscription<>(subscriber, stream.iterator(), stream::close));
+            }
+        };
+    }
+
+    /**
+     * @param future result to push, null results are left out
+     * @param <T>    type of the result
+     * @return push stream with one element, the result of the future
+     */
+    public static <T> PushStream<T> fromFuture(CompletableFuture<? extends T> future) {
+        return new PushStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                AtomicBoolean requested = new AtomicBoolean();
+                AtomicBoolean cancelled = new AtomicBoolean();
+                subscriber.onSubscribe(new Subscription() {
+                    @Override
+                    public void request(long n) {
+                        if (n <= 0) {
+                            cancelled.set(true);
+                            subscriber.onError(new IllegalArgumentException("request must be positive: " + n));
+                        } else if (requested.compareAndSet(false, true)) {
+                            future.whenComplete((result, error) -> {
+                                if (cancelled.get()) {
+                                    return;
+                                }
+                                if (error != null) {
+                                    subscriber.onError(error);
+                                    return;
+                                }
+                                if (result != null) {
+                                    subscriber.onNext(result);
+                                }
+                                subscriber.onComplete();
+                            });
+                        }
+                    }
+
+                    @Override
+                    public void cancel() {
+                        cancelled.set(true);
+                    }
+                });
+            }
+        };
+    }
+
+    // Operators
+
+    public <R> PushStream<R> map(Function<? super T, ? extends R> mapper) {
+        PushStream<T> upstream = this;
+        return new PushStream<R>() {
+            @Override
+            public void subscribe(Subscriber<? super R> subscriber) {
+                upstream.subscribe(new OperatorSubscriber<T, R>(subscriber) {
+                    @Override
+                    void next(T element) {
+                        downstream.onNext(Objects.requireNonNull(mapper.apply(element), "mapper returned null"));
+                    }
+                });
+            }
+        };
+    }
+
+    public PushStream<T> filter(Predicate<? super T> predicate) {
+        PushStream<T> upstream = this;
+        return new PushStream<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                upstream.subscribe(new OperatorSubscriber<T, T>(subscriber) {
+                    @Override
+                    void next(T element) {
+                        if (predicate.test(element)) {
+                            downstream.onNext(element);
+                        } else {
+                            // the element the subscriber asked for didn't come, so ask for another one
+                            subscription.request(1);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Maps every element to a stream and merges the elements of these streams. The order of the elements is the
+     * order in which they arrive.
+     *
+     * @param mapper         creates a stream for every element
+     * @param maxConcurrency maximum number of streams that are subscribed at the same time. The next element is only
+     *                       requested when one of them has completed.
+     * @param <R>            type of the resulting elements
+     * @return merged stream
+     */
+    public <R> PushStream<R> flatMap(Function<? super T, ? extends PushStream<? extends R>> mapper,
+                                     int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency has to be positive: " + maxConcurrency);
+        }
+        PushStream<T> upstream = this;
+        return new PushStream<R>() {
+            @Override
+            public void subscribe(Subscriber<? super R> subscriber) {
+                upstream.subscribe(new FlatMapSubscriber<>(subscriber, mapper, maxConcurrency));
+            }
+        };
+    }
+
+    /**
+     * flatMap(...) for asynchronous calls: at most maxConcurrency futures are running at the same time.
+     *
+     * @param mapper         starts an asynchronous call for every element
+     * @param maxConcurrency maximum number of calls running at the same time
+     * @param <R>            type of the results
+     * @return stream of the results in the order they arrive
+     */
+    public <R> PushStream<R> mapAsync(Function<? super T, ? extends CompletableFuture<? extends R>> mapper,
+                                      int maxConcurrency) {
+        return flatMap(element -> fromFuture(mapper.apply(element)), maxConcurrency);
+    }
+
+    // Sinks
+
+    /**
+     * @param bufferSize maximum number of elements that are pushed but not pulled yet
+     * @return stream that pulls the elements. Its terminal operation blocks until elements arrive. Closing the stream
+     * cancels the subscription.
+     */
+    public Stream<T> toStream(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize has to be positive: " + bufferSize);
+        }
+        BlockingSubscriber<T> subscriber = new BlockingSubscriber<>(bufferSize);
+        subscribe(subscriber);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(subscriber,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(subscriber::cancel);
+    }
+
+    /**
+     * @return future of all elements
+     */
+    public CompletableFuture<List<T>> toList() {
+        CompletableFuture<List<T>> result = new CompletableFuture<>();
+        List<T> elements = new ArrayList<>();
+        subscribe(new Subscriber<T>() {
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(T element) {
+                elements.add(element);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                result.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                result.complete(elements);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return future of the first element, empty if there is none. The subscription is cancelled after it.
+     */
+    public CompletableFuture<Optional<T>> first() {
+        CompletableFuture<Optional<T>> result = new CompletableFuture<>();
+        subscribe(new Subscriber<T>() {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(T element) {
+                if (result.complete(Optional.of(element))) {
+                    subscription.cancel();
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                result.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                result.complete(Optional.empty());
+            }
+        });
+        return result;
+    }
+
+    // Implementation
+
+    private static long addCapped(AtomicLong requested, long n) {
+        while (true) {
+            long current = requested.get();
+            if (current == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+            long updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (requested.compareAndSet(current, updated)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Pushes the elements of an iterator, exactly as many as requested.
+     */
+    private static final class IteratorSubscription<T> implements Subscription {
+        private final Subscriber<? super T> subscriber;
+        private final Iterator<? extends T> iterator;
+        private final Runnable onEnd;
+        private final AtomicLong requested = new AtomicLong();
+        private volatile boolean cancelled;
+
+        IteratorSubscription(Subscriber<? super T> subscriber, Iterator<? extends T> iterator, Runnable onEnd) {
+            this.subscriber = subscriber;
+            this.iterator = iterator;
+            this.onEnd = onEnd;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("request must be positive: " + n));
+                return;
+            }
+            // Only the thread that raises the demand from 0 emits. A request(...) from within onNext(...) just raises
+            // the demand, the loop below picks it up - no recursion.
+            if (addCapped(requested, n) != 0) {
+                return;
+            }
+            long emitted = 0;
+            long demand = requested.get();
+            while (true) {
+                while (emitted != demand) {
+                    if (cancelled) {
+                        return;
+                    }
+                    T element;
+                    try {
+                        if (!iterator.hasNext()) {
+                            cancelled = true;
+                            onEnd.run();
+                            subscriber.onComplete();
+                            return;
+                        }
+                        element = Objects.requireNonNull(iterator.next(), "null element");
+                    } catch (RuntimeException e) {
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                    subscriber.onNext(element);
+                    emitted++;
+                }
+                demand = requested.get();
+                if (demand == emitted) {
+                    demand = requested.addAndGet(-emitted);
+                    emitted = 0;
+                    if (demand == 0) {
+                        return;
+                    }
+                } else if (demand == Long.MAX_VALUE) {
+                    emitted = 0;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                onEnd.run();
+            }
+        }
+    }
+
+    /**
+     * Base for map and filter: passes the subscription through and stops after an exception in the lambda.
+     */
+    private abstract static class OperatorSubscriber<T, R> implements Subscriber<T> {
+        final Subscriber<? super R> downstream;
+        Subscription subscription;
+        private boolean done;
+
+        OperatorSubscriber(Subscriber<? super R> downstream) {
+            this.downstream = downstream;
+        }
+
+        abstract void next(T element);
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            downstream.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(T element) {
+            if (done) {
+                return;
+            }
+            try {
+                next(element);
+            } catch (RuntimeException e) {
+                done = true;
+                subscription.cancel();
+                downstream.onError(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (!done) {
+                done = true;
+                downstream.onError(error);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (!done) {
+                done = true;
+                downstream.onComplete();
+            }
+        }
+    }
+
+    /**
+     * Subscribes to at most maxConcurrency inner streams at the same time. Every inner stream gets a small queue,
+     * a drain loop moves elements from the queues to the subscriber as long as it has demand. Only one thread at a
+     * time runs the drain loop, the others just tell it to run again ("work in progress" counter).
+     */
+    private static final class FlatMapSubscriber<T, R> implements Subscriber<T>, Subscription {
+        private static final int PREFETCH = 16;
+
+        private final Subscriber<? super R> downstream;
+        private final Function<? super T, ? extends PushStream<? extends R>> mapper;
+        private final int maxConcurrency;
+        private final Queue<Inner> inners = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile Subscription upstream;
+        private volatile boolean upstreamDone;
+        private volatile boolean cancelled;
+
+        FlatMapSubscriber(Subscriber<? super R> downstream,
+                          Function<? super T, ? extends PushStream<? extends R>> mapper, int maxConcurrency) {
+            this.downstream = downstream;
+            this.mapper = mapper;
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+            subscription.request(maxConcurrency);
+        }
+
+        @Override
+        public void onNext(T element) {
+            if (upstreamDone || cancelled) {
+                return;
+            }
+            PushStream<? extends R> inner;
+            try {
+                inner = Objects.requireNonNull(mapper.apply(element), "mapper returned null");
+            } catch (RuntimeException e) {
+                upstream.cancel();
+                onError(e);
+                return;
+            }
+            Inner subscriber = new Inner();
+            inners.add(subscriber);
+            inner.subscribe(subscriber);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            error.compareAndSet(null, e);
+            upstreamDone = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            upstreamDone = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                onError(new IllegalArgumentException("request must be positive: " + n));
+                return;
+            }
+            addCapped(requested, n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            upstream.cancel();
+            inners.forEach(Inner::cancel);
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                if (cancelled) {
+                    return;
+                }
+                Throwable e = error.get();
+                if (e != null) {
+                    cancel();
+                    downstream.onError(e);
+                    return;
+                }
+                long demand = requested.get();
+                long emitted = 0;
+                for (Inner inner : inners) {
+                    R element;
+                    while (emitted != demand && (element = inner.queue.poll()) != null) {
+                        downstream.onNext(element);
+                        emitted++;
+                        inner.consumed();
+                    }
+                    if (inner.done && inner.queue.isEmpty()) {
+                        inners.remove(inner);
+                        if (!upstreamDone) {
+                            // room for the next inner stream
+                            upstream.request(1);
+                        }
+                    }
+                }
+                if (emitted != 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (upstreamDone && inners.isEmpty()) {
+                    cancelled = true;
+                    downstream.onComplete();
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private final class Inner implements Subscriber<R> {
+            private final Queue<R> queue = new ConcurrentLinkedQueue<>();
+            private volatile Subscription subscription;
+            private volatile boolean done;
+            private int consumed;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(PREFETCH);
+            }
+
+            @Override
+            public void onNext(R element) {
+                queue.offer(element);
+                drain();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                FlatMapSubscriber.this.onError(e);
+            }
+
+            @Override
+            public void onComplete() {
+                done = true;
+                drain();
+            }
+
+            // called by the drain loop only
+            void consumed() {
+                if (++consumed == PREFETCH / 2) {
+                    consumed = 0;
+                    subscription.request(PREFETCH / 2);
+                }
+            }
+
+            void cancel() {
+                Subscription s = subscription;
+                if (s != null) {
+                    s.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Bridge to pulling: the elements are put into a queue that never holds more than bufferSize elements, because
+     * that's all the subscriber requests. Taking elements out requests new ones.
+     */
+    private static final class BlockingSubscriber<T> implements Subscriber<T>, Iterator<T> {
+        private static final Object COMPLETE = new Object();
+
+        private final int bufferSize;
+        private final int replenish;
+        private final BlockingQueue<Object> queue;
+        private volatile Subscription subscription;
+        private int consumed;
+        private Object next;
+
+        BlockingSubscriber(int bufferSize) {
+            this.bufferSize = bufferSize;
+            this.replenish = Math.max(1, bufferSize / 2);
+            this.queue = new LinkedBlockingQueue<>();
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(bufferSize);
+        }
+
+        @Override
+        public void onNext(T element) {
+            queue.offer(element);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            queue.offer(new Failure(error));
+        }
+
+        @Override
+        public void onComplete() {
+            queue.offer(COMPLETE);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    throw new IllegalStateException("Interrupted while waiting for the next element", e);
+                }
+            }
+            if (next instanceof Failure) {
+                Throwable error = ((Failure) next).error;
+                throw error instanceof RuntimeException ? (RuntimeException) error
+                        : new IllegalStateException(error);
+            }
+            return next != COMPLETE;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T result = (T) next;
+            next = null;
+            if (++consumed == replenish) {
+                consumed = 0;
+                subscription.request(replenish);
+            }
+            return result;
+        }
+
+        void cancel() {
+            Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+        }
+    }
+
+    private static final class Failure {
+        private final Throwable error;
+
+        Failure(Throwable error) {
+            this.error = error;
+        }
+    }
+}
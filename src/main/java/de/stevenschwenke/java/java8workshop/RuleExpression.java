@@ -0,0 +1,16 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.Map;
+
+/**
+ * A compiled expression like {@code "price * amount > 100 && !blocked"} that can be evaluated many times.
+ */
+@FunctionalInterface
+public interface RuleExpression {
+
+    /**
+     * @param variables values of the variables used in the expression
+     * @return result of the expression
+     */
+    Object evaluate(Map<String, ?> variables);
+}
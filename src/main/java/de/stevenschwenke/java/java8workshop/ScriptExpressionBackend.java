@@ -0,0 +1,42 @@
+package de.stevenschwenke.java.java8workshop;
+
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.util.Optional;
+
+/**
+ * {@link ExpressionBackend} that evaluates expressions with a JSR-223 script engine, see {@link CachedScriptEngine}.
+ */
+public class ScriptExpressionBackend implements ExpressionBackend {
+
+    private final CachedScriptEngine engine;
+
+    /**
+     * @param engineName name of the engine, for example "nashorn"
+     */
+    public ScriptExpressionBackend(String engineName) {
+        this.engine = new CachedScriptEngine(engineName);
+    }
+
+    /**
+     * @param engineName name of the engine, for example "nashorn"
+     * @return backend or empty if there's no such engine in this JVM
+     */
+    public static Optional<ExpressionBackend> find(String engineName) {
+        if (new ScriptEngineManager().getEngineByName(engineName) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new ScriptExpressionBackend(engineName));
+    }
+
+    @Override
+    public RuleExpression compile(String source) {
+        return variables -> {
+            try {
+                return engine.eval(source, variables);
+            } catch (ScriptException e) {
+                throw new IllegalArgumentException("Could not evaluate " + source, e);
+            }
+        };
+    }
+}
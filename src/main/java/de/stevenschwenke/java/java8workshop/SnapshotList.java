@@ -0,0 +1,201 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe list that can only grow and can be streamed while elements are added.
+ * <p>
+ * Adding elements to a LinkedList while it's streamed throws a ConcurrentModificationException, see
+ * C_04_Streams.alteringDataSourceOfAStream(). A CopyOnWriteArrayList copies everything on every add. This list stores
+ * its elements in chunks of fixed size that are never moved, and elements are never removed or replaced. So a
+ * snapshot is just the current size: elements added later are in slots the snapshot never looks at. Taking a snapshot
+ * is O(1) and doesn't copy anything.
+ * <p>
+ * iterator(), spliterator() and stream() work on a snapshot: they see the elements that were in the list when they
+ * were created, no matter what's added in the meantime. Adding is synchronized, reading is lock-free.
+ *
+ * @param <E> type of the elements
+ */
+public class SnapshotList<E> extends AbstractList<E> implements RandomAccess {
+
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    // The writer fills a slot first and publishes it by increasing size afterwards. Readers read size first, so
+    // they never see a slot that's not filled yet.
+    private volatile Object[][] chunks = new Object[4][];
+    private volatile int size;
+
+    @Override
+    public synchronized boolean add(E element) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        Object[][] current = chunks;
+        if (chunk == current.length) {
+            // only the references to the chunks are copied, never the elements
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        if (current[chunk] == null) {
+            current[chunk] = new Object[CHUNK_SIZE];
+        }
+        current[chunk][index & (CHUNK_SIZE - 1)] = element;
+        chunks = current;
+        size = index + 1;
+        return true;
+    }
+
+    @Override
+    public E get(int index) {
+        int currentSize = size;
+        if (index < 0 || index >= currentSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + currentSize);
+        }
+        return element(chunks, index);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the elements that are in the list right now, without copying them
+     */
+    public Snapshot<E> snapshot() {
+        int currentSize = size;
+        return new Snapshot<>(chunks, currentSize);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return snapshot().iterator();
+    }
+
+    @Override
+    public Spliterator<E> spliterator() {
+        return snapshot().spliterator();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E element(Object[][] chunks, int index) {
+        return (E) chunks[index >>> CHUNK_SHIFT][index & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * Unmodifiable view of a SnapshotList at one point in time.
+     *
+     * @param <E> type of the elements
+     */
+    public static final class Snapshot<E> extends AbstractList<E> implements RandomAccess {
+        private final Object[][] chunks;
+        private final int size;
+
+        private Snapshot(Object[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public E get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return element(chunks, index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new Iterator<E>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public E next() {
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return element(chunks, next++);
+                }
+            };
+        }
+
+        @Override
+        public Spliterator<E> spliterator() {
+            return new SnapshotSpliterator<>(chunks, 0, size);
+        }
+    }
+
+    /**
+     * Splits in halves like the spliterator of an ArrayList, see SplitDiagnostics.
+     */
+    private static final class SnapshotSpliterator<E> implements Spliterator<E> {
+        private final Object[][] chunks;
+        private int index;
+        private final int end;
+
+        SnapshotSpliterator(Object[][] chunks, int index, int end) {
+            this.chunks = chunks;
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            if (index >= end) {
+                return false;
+            }
+            action.accept(element(chunks, index++));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super E> action) {
+            // chunk by chunk, without calculating the chunk for every element
+            while (index < end) {
+                Object[] chunk = chunks[index >>> CHUNK_SHIFT];
+                int chunkEnd = Math.min(end, ((index >>> CHUNK_SHIFT) + 1) << CHUNK_SHIFT);
+                for (int i = index & (CHUNK_SIZE - 1); index < chunkEnd; i++, index++) {
+                    @SuppressWarnings("unchecked")
+                    E element = (E) chunk[i];
+                    action.accept(element);
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<E> trySplit() {
+            int middle = (index + end) >>> 1;
+            if (middle <= index) {
+                return null;
+            }
+            Spliterator<E> prefix = new SnapshotSpliterator<>(chunks, index, middle);
+            index = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Shows how a parallel stream splits its source.
+ * <p>
+ * A parallel stream asks the {@link Spliterator} of its source to split itself again and again, until there are
+ * enough parts ("leaves") for all threads. How well that works depends on the source: an ArrayList splits exactly in
+ * halves, a LinkedList or Stream.iterate(...) don't know their elements without walking through them and can only cut
+ * off batches from the front. This class wraps the spliterator, records every split and every element and creates a
+ * {@link Report}:
+ * <pre>
+ * SplitDiagnostics&lt;Integer&gt; diagnostics = SplitDiagnostics.of(linkedList.spliterator());
+ * diagnostics.parallelStream().mapToInt(i -&gt; i).sum();
+ * System.out.println(diagnostics.report());
+ * </pre>
+ *
+ * @param <T> type of the elements
+ */
+public final class SplitDiagnostics<T> {
+
+    private final Spliterator<T> source;
+    private final int characteristics;
+    private final long estimatedSize;
+    private final Queue<Leaf> leaves = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger splits = new AtomicInteger();
+    private final AtomicInteger refusedSplits = new AtomicInteger();
+
+    private SplitDiagnostics(Spliterator<T> source) {
+        this.source = source;
+        this.characteristics = source.characteristics();
+        this.estimatedSize = source.estimateSize();
+    }
+
+    /**
+     * @param source spliterator to watch, for example collection.spliterator() or stream.spliterator()
+     * @param <T>    type of the elements
+     * @return diagnostics for one run of a stream
+     */
+    public static <T> SplitDiagnostics<T> of(Spliterator<T> source) {
+        return new SplitDiagnostics<>(source);
+    }
+
+    /**
+     * @return parallel stream on the watched source. Can be used once, like every stream.
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(new RecordingSpliterator(source, 0), true);
+    }
+
+    /**
+     * @return what has been recorded so far, should be called after the terminal operation
+     */
+    public Report report() {
+        List<Leaf> snapshot = new ArrayList<>(leaves);
+        snapshot.sort(Comparator.comparingInt((Leaf l) -> l.depth));
+        return new Report(characteristics, estimatedSize, splits.get(), refusedSplits.get(), snapshot);
+    }
+
+    /**
+     * One part of the source that has been traversed by one thread.
+     */
+    private static class Leaf {
+        private final int depth;
+        // only written by the thread traversing the leaf, read after the stream has finished
+        private long elements;
+
+        Leaf(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private class RecordingSpliterator implements Spliterator<T> {
+        private final Spliterator<T> delegate;
+        private int depth;
+        private Leaf leaf;
+
+        RecordingSpliterator(Spliterator<T> delegate, int depth) {
+            this.delegate = delegate;
+            this.depth = depth;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<T> prefix = delegate.trySplit();
+            if (prefix == null) {
+                refusedSplits.incrementAndGet();
+                return null;
+            }
+            splits.incrementAndGet();
+            // This instance keeps the rest of the elements, so it's one level deeper as well.
+            depth++;
+            return new RecordingSpliterator(prefix, depth);
+        }
+
+        private Leaf leaf() {
+            if (leaf == null) {
+                leaf = new Leaf(depth);
+                leaves.add(leaf);
+            }
+            return leaf;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            Leaf current = leaf();
+            return delegate.tryAdvance(element -> {
+                current.elements++;
+                action.accept(element);
+            });
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            Leaf current = leaf();
+            delegate.forEachRemaining(element -> {
+                current.elements++;
+                action.accept(element);
+            });
+        }
+
+        @Override
+        public long estimateSize() {
+            return delegate.estimateSize();
+        }
+
+        @Override
+        public long getExactSizeIfKnown() {
+            return delegate.getExactSizeIfKnown();
+        }
+
+        @Override
+        public int characteristics() {
+            return delegate.characteristics();
+        }
+
+        @Override
+        public Comparator<? super T> getComparator() {
+            return delegate.getComparator();
+        }
+    }
+
+    /**
+     * Result of the diagnostics.
+     */
+    public static final class Report {
+        private final int characteristics;
+        private final long estimatedSize;
+        private final int splits;
+        private final int refusedSplits;
+        private final List<Leaf> leaves;
+        private final LongSummaryStatistics elementsPerLeaf;
+
+        private Report(int characteristics, long estimatedSize, int splits, int refusedSplits, List<Leaf> leaves) {
+            this.characteristics = characteristics;
+            this.estimatedSize = estimatedSize;
+            this.splits = splits;
+            this.refusedSplits = refusedSplits;
+            this.leaves = Collections.unmodifiableList(leaves);
+            this.elementsPerLeaf = leaves.stream().mapToLong(l -> l.elements).summaryStatistics();
+        }
+
+        public boolean isSized() {
+            return (characteristics & Spliterator.SIZED) != 0;
+        }
+
+        public boolean isSubsized() {
+            return (characteristics & Spliterator.SUBSIZED) != 0;
+        }
+
+        public boolean isOrdered() {
+            return (characteristics & Spliterator.ORDERED) != 0;
+        }
+
+        public int getSplits() {
+            return splits;
+        }
+
+        public int getLeaves() {
+            return leaves.size();
+        }
+
+        public int getMaxDepth() {
+            return leaves.stream().mapToInt(l -> l.depth).max().orElse(0);
+        }
+
+        public long getElements() {
+            return elementsPerLeaf.getSum();
+        }
+
+        /**
+         * @return elements in the largest leaf divided by the elements per leaf on average. 1 is perfectly
+         * balanced, the larger the worse. One large leaf is processed by one thread while the others wait.
+         */
+        public double getImbalance() {
+            return leaves.isEmpty() ? 1 : elementsPerLeaf.getMax() / elementsPerLeaf.getAverage();
+        }
+
+        /**
+         * @return explanations of what's hindering parallelism, empty if nothing was found
+         */
+        public List<String> getProblems() {
+            List<String> problems = new ArrayList<>();
+            if (!isSized()) {
+                problems.add("Source is not SIZED: it doesn't know how many elements it has and can only split off "
+                        + "batches from the front, for example an Iterator or Stream.iterate(...).");
+            } else if (!isSubsized()) {
+                problems.add("Source is SIZED but not SUBSIZED: the parts after a split don't know their size, "
+                        + "for example a HashSet. Splits are guesses.");
+            }
+            if (getLeaves() < ForkJoinPool.getCommonPoolParallelism() && getElements() > 1) {
+                problems.add("Only " + getLeaves() + " leaves for " + ForkJoinPool.getCommonPoolParallelism()
+                        + " worker threads, some threads had nothing to do.");
+            }
+            // Splitting in halves needs about log2(leaves) levels. Much deeper means that batches were cut off
+            // the front again and again, like a LinkedList does.
+            int balancedDepth = 32 - Integer.numberOfLeadingZeros(Math.max(1, getLeaves() - 1));
+            if (getMaxDepth() > 2 * balancedDepth) {
+                problems.add("Splits are lopsided: depth " + getMaxDepth() + " for " + getLeaves() + " leaves, "
+                        + "splitting in halves would need " + balancedDepth + ". The source cuts off batches "
+                        + "instead of splitting in halves.");
+            }
+            if (getImbalance() > 2) {
+                problems.add(String.format("Leaves are unbalanced: the largest leaf has %.1f times the average "
+                        + "number of elements.", getImbalance()));
+            }
+            return problems;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append("characteristics: ").append(characteristics(characteristics)).append('\n');
+            result.append("estimated size: ").append(estimatedSize == Long.MAX_VALUE ? "unknown" : estimatedSize)
+                    .append(", elements: ").append(getElements()).append('\n');
+            result.append("splits: ").append(splits).append(", refused splits: ").append(refusedSplits)
+                    .append(", max depth: ").append(getMaxDepth()).append('\n');
+            result.append(String.format("leaves: %d, elements per leaf: min %d, avg %.1f, max %d, imbalance %.2f%n",
+                    getLeaves(), leaves.isEmpty() ? 0 : elementsPerLeaf.getMin(), elementsPerLeaf.getAverage(),
+                    leaves.isEmpty() ? 0 : elementsPerLeaf.getMax(), getImbalance()));
+            for (Leaf leaf : leaves) {
+                result.append("  depth ").append(leaf.depth).append(": ").append(leaf.elements).append('\n');
+            }
+            List<String> problems = getProblems();
+            result.append(problems.isEmpty() ? "no problems found" : "problems:");
+            for (String problem : problems) {
+                result.append("\n  - ").append(problem);
+            }
+            return result.toString();
+        }
+
+        private static String characteristics(int characteristics) {
+            String[] names = {"ORDERED", "DISTINCT", "SORTED", "SIZED", "NONNULL", "IMMUTABLE", "CONCURRENT",
+                    "SUBSIZED"};
+            int[] flags = {Spliterator.ORDERED, Spliterator.DISTINCT, Spliterator.SORTED, Spliterator.SIZED,
+                    Spliterator.NONNULL, Spliterator.IMMUTABLE, Spliterator.CONCURRENT, Spliterator.SUBSIZED};
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < flags.length; i++) {
+                if ((characteristics & flags[i]) != 0) {
+                    result.append(result.length() == 0 ? "" : " ").append(names[i]);
+                }
+            }
+            return result.length() == 0 ? "none" : result.toString();
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Stream pipeline that is recorded first and optimized before it runs.
+ * <p>
+ * The order of operations in a stream matters, see C_05_Streams_Exercises.orderOfOperationsInStreams(). Some
+ * rewrites never change the result, though, and are done here automatically:
+ * <ul>
+ * <li>adjacent map(...)s are fused into one function</li>
+ * <li>adjacent filter(...)s are fused into one filter. The predicates run in the declared order, so a filter can
+ * rely on the filters before it, for example filter(s -&gt; s != null).filter(s -&gt; s.length() &gt; 3).</li>
+ * <li>adjacent filters added with {@link #filterIndependent(String, Predicate)} can run in any order. The fused
+ * filter measures how expensive each of them is and how many elements it lets through. After {@link #SAMPLE_SIZE}
+ * elements, they are reordered so that cheap predicates that throw away a lot of elements run first.</li>
+ * <li>sorted(...) directly followed by limit(n) keeps only the n smallest elements in a small heap instead of sorting
+ * everything ("top-K")</li>
+ * </ul>
+ * {@link #explain()} shows the plan that was chosen. Note that limit(n) followed by sorted() is not the same as
+ * sorted() followed by limit(n) and is left alone. Predicates have to be free of side effects, as they should be
+ * in every stream.
+ * <p>
+ * Parallel streams keep the encounter order of their source, which makes distinct() and limit(n) expensive: they
+ * have to know which element came first. Many terminal operations don't care about the order: count(), sum(),
+ * anyMatch(...), findAny(), collect(toSet()), forEach(...). For these, {@link #runUnordered(Stream)} and the
+ * terminal operations of this class like {@link #count(Stream)} drop the encounter order as early as possible
+ * without changing the result - right after the last limit(n), because which elements limit(n) lets through does
+ * depend on the order.
+ * <p>
+ * A pipeline started with {@link #start(NonInterferenceChecker)} checks that its lambdas don't change the elements or
+ * anything else, so it can safely run in parallel.
+ *
+ * @param <S> type of the elements of the source
+ * @param <T> type of the elements at the end of the pipeline
+ */
+public final class StreamPipeline<S, T> {
+
+    /**
+     * Number of elements a fused filter measures before it reorders its predicates.
+     */
+    public static final int SAMPLE_SIZE = 1000;
+
+    private final List<Operation> operations;
+    private final NonInterferenceChecker checker;
+    private List<Operation> plan;
+    private List<Operation> unorderedPlan;
+
+    private StreamPipeline(List<Operation> operations, NonInterferenceChecker checker) {
+        this.operations = operations;
+        this.checker = checker;
+    }
+
+    /**
+     * @param <S> type of the elements of the source
+     * @return empty pipeline
+     */
+    public static <S> StreamPipeline<S, S> start() {
+        return new StreamPipeline<>(Collections.emptyList(), null);
+    }
+
+    /**
+     * @param checker checks every lambda of the pipeline, see {@link NonInterferenceChecker#verify()}
+     * @param <S>     type of the elements of the source
+     * @return empty pipeline
+     */
+    public static <S> StreamPipeline<S, S> start(NonInterferenceChecker checker) {
+        return new StreamPipeline<>(Collections.emptyList(), Objects.requireNonNull(checker));
+    }
+
+    public StreamPipeline<S, T> filter(Predicate<? super T> predicate) {
+        return filter("filter" + (count(FilterOperation.class) + 1), predicate);
+    }
+
+    /**
+     * @param name      used in {@link #explain()}
+     * @param predicate to filter with
+     * @return new pipeline with the filter at the end
+     */
+    public StreamPipeline<S, T> filter(String name, Predicate<? super T> predicate) {
+        return filter(name, predicate, false);
+    }
+
+    /**
+     * Filter that doesn't depend on the filters before it: it works for every element, also for the ones the
+     * filters before it throw away, and has no side effects. Adjacent independent filters are reordered by measured
+     * cost and selectivity.
+     *
+     * @param name      used in {@link #explain()}
+     * @param predicate to filter with
+     * @return new pipeline with the filter at the end
+     */
+    public StreamPipeline<S, T> filterIndependent(String name, Predicate<? super T> predicate) {
+        return filter(name, predicate, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private StreamPipeline<S, T> filter(String name, Predicate<? super T> predicate, boolean independent) {
+        Predicate<Object> p = (Predicate<Object>) predicate;
+        return then(new FilterOperation(Collections.singletonList(name),
+                Collections.singletonList(checker == null ? p : checker.predicate(name, p)),
+                Collections.singletonList(independent)));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> StreamPipeline<S, R> map(Function<? super T, ? extends R> mapper) {
+        Function<Object, Object> f = (Function<Object, Object>) mapper;
+        if (checker != null) {
+            f = checker.function("map" + (count(MapOperation.class) + 1), f);
+        }
+        return then(new MapOperation(1, LambdaFusion.function(f)));
+    }
+
+    /**
+     * @param action called for every element, should not change anything
+     * @return new pipeline with peek at the end
+     */
+    @SuppressWarnings("unchecked")
+    public StreamPipeline<S, T> peek(Consumer<? super T> action) {
+        Consumer<Object> c = (Consumer<Object>) action;
+        return then(new PeekOperation(checker == null ? c : checker.consumer("peek" + (count(PeekOperation.class)
+                + 1), c)));
+    }
+
+    @SuppressWarnings("unchecked")
+    public StreamPipeline<S, T> sorted() {
+        return sorted((Comparator<? super T>) Comparator.naturalOrder());
+    }
+
+    @SuppressWarnings("unchecked")
+    public StreamPipeline<S, T> sorted(Comparator<? super T> comparator) {
+        return then(new SortOperation((Comparator<Object>) comparator));
+    }
+
+    public StreamPipeline<S, T> limit(long maxSize) {
+        return then(new LimitOperation(maxSize));
+    }
+
+    public StreamPipeline<S, T> distinct() {
+        return then(new DistinctOperation());
+    }
+
+    /**
+     * Runs the optimized pipeline. The pipeline can be run many times, the measurements of the filters are kept.
+     *
+     * @param source stream to run the pipeline on
+     * @return the resulting stream, terminal operations can be added as usual
+     */
+    public Stream<T> run(Stream<S> source) {
+        return run(source, plan());
+    }
+
+    /**
+     * Runs the optimized pipeline without keeping the encounter order where it doesn't change the result. Only for
+     * terminal operations that don't care about the order, like count(), anyMatch(...), findAny() or
+     * collect(toSet()). With collect(toList()) or findFirst() the result would be in any order.
+     *
+     * @param source stream to run the pipeline on
+     * @return the resulting stream, unordered at least after the last limit(n)
+     */
+    public Stream<T> runUnordered(Stream<S> source) {
+        return run(source, unorderedPlan());
+    }
+
+    public long count(Stream<S> source) {
+        return record("count", source, s -> runUnordered(s).count());
+    }
+
+    public Set<T> toSet(Stream<S> source) {
+        return record("toSet", source, s -> runUnordered(s).collect(Collectors.toSet()));
+    }
+
+    public boolean anyMatch(Stream<S> source, Predicate<? super T> predicate) {
+        return record("anyMatch", source, s -> runUnordered(s).anyMatch(predicate));
+    }
+
+    /**
+     * The encounter order is kept for findFirst(), see {@link #findAny(Stream)} for the faster alternative.
+     */
+    public Optional<T> findFirst(Stream<S> source) {
+        return record("findFirst", source, s -> run(s).findFirst());
+    }
+
+    public Optional<T> findAny(Stream<S> source) {
+        return record("findAny", source, s -> runUnordered(s).findAny());
+    }
+
+    public List<T> toList(Stream<S> source) {
+        return record("toList", source, s -> run(s).collect(Collectors.toList()));
+    }
+
+    /*
+        Terminal operations are recorded for the Flight Recorder, see FlightEvents. Streams returned by run(...) are
+        not: the pipeline doesn't know when their terminal operation runs.
+     */
+    private <R> R record(String terminal, Stream<S> source, Function<Stream<S>, R> terminalOperation) {
+        Object event = FlightEvents.beginStreamPipeline();
+        if (event == null) {
+            return terminalOperation.apply(source);
+        }
+        // The size is only known from the spliterator. A stream is made of it again, which is cheap.
+        boolean parallel = source.isParallel();
+        Spliterator<S> spliterator = source.spliterator();
+        long sourceSize = spliterator.getExactSizeIfKnown();
+        Stream<S> sized = StreamSupport.stream(spliterator, parallel).onClose(source::close);
+        try {
+            return terminalOperation.apply(sized);
+        } finally {
+            FlightEvents.commitStreamPipeline(event, terminal, this::explain, sourceSize, parallel);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Stream<T> run(Stream<S> source, List<Operation> plan) {
+        Stream<Object> stream = (Stream<Object>) source;
+        for (Operation operation : plan) {
+            stream = operation.apply(stream);
+        }
+        return (Stream<T>) stream;
+    }
+
+    /**
+     * @return the optimized plan, one operation per line
+     */
+    public String explain() {
+        return explain(plan());
+    }
+
+    /**
+     * @return the optimized plan for order-insensitive terminal operations, one operation per line
+     */
+    public String explainUnordered() {
+        return explain(unorderedPlan());
+    }
+
+    private static String explain(List<Operation> plan) {
+        return plan.stream().map(Operation::toString).collect(Collectors.joining("\n"));
+    }
+
+    private synchronized List<Operation> plan() {
+        if (plan == null) {
+            plan = optimize(operations);
+        }
+        return plan;
+    }
+
+    // Same operations as the ordered plan, so the measurements of the filters are shared.
+    private synchronized List<Operation> unorderedPlan() {
+        if (unorderedPlan == null) {
+            List<Operation> ordered = plan();
+            int position = 0;
+            for (int i = 0; i < ordered.size(); i++) {
+                if (ordered.get(i) instanceof LimitOperation || ordered.get(i) instanceof TopOperation) {
+                    position = i + 1;
+                }
+            }
+            List<Operation> result = new ArrayList<>(ordered);
+            result.add(position, new UnorderedOperation());
+            unorderedPlan = Collections.unmodifiableList(result);
+        }
+        return unorderedPlan;
+    }
+
+    private static List<Operation> optimize(List<Operation> operations) {
+        List<Operation> result = new ArrayList<>();
+        for (Operation next : operations) {
+            Operation last = result.isEmpty() ? null : result.get(result.size() - 1);
+            Operation fused = last == null ? null : last.fuseWith(next);
+            if (fused != null) {
+                result.set(result.size() - 1, fused);
+            } else {
+                result.add(next);
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> StreamPipeline<S, R> then(Operation operation) {
+        List<Operation> extended = new ArrayList<>(operations);
+        extended.add(operation);
+        return new StreamPipeline<>(Collections.unmodifiableList(extended), checker);
+    }
+
+    private long count(Class<? extends Operation> type) {
+        return operations.stream().filter(type::isInstance).count();
+    }
+
+    /**
+     * One recorded operation.
+     */
+    private abstract static class Operation {
+        abstract Stream<Object> apply(Stream<Object> stream);
+
+        /**
+         * @return one operation that does the same as this followed by next, or null if that's not possible
+         */
+        Operation fuseWith(Operation next) {
+            return null;
+        }
+    }
+
+    /**
+     * One or more maps. Fused maps become one lambda, see {@link LambdaFusion}.
+     */
+    private static class MapOperation extends Operation {
+        private final int fused;
+        private final LambdaFusion.FusableFunction<Object, Object> chain;
+        // fused when the plan runs for the first time, not for every intermediate step while optimizing
+        private volatile Function<Object, Object> mapper;
+
+        MapOperation(int fused, LambdaFusion.FusableFunction<Object, Object> chain) {
+            this.fused = fused;
+            this.chain = chain;
+        }
+
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            if (mapper == null) {
+                mapper = chain.fuse();
+            }
+            return stream.map(mapper);
+        }
+
+        @Override
+        Operation fuseWith(Operation next) {
+            if (next instanceof MapOperation) {
+                MapOperation other = (MapOperation) next;
+                return new MapOperation(fused + other.fused, chain.andThen(other.chain));
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return fused == 1 ? "map" : "map (" + fused + " maps fused)";
+        }
+    }
+
+    /**
+     * Filter with one or more predicates. Adjacent independent predicates are measured and reordered.
+     */
+    private static class FilterOperation extends Operation {
+        private final List<String> names;
+        private final List<Predicate<Object>> predicates;
+        private final List<Boolean> independent;
+        private final boolean reorderable;
+
+        // measured while sampling: per predicate the number of elements it tested, let pass and the time spent
+        private final AtomicLongArray reached;
+        private final AtomicLongArray passed;
+        private final AtomicLongArray nanos;
+        private final AtomicLong sampled = new AtomicLong();
+        private final AtomicBoolean reordered = new AtomicBoolean();
+        private volatile int[] order;
+
+        FilterOperation(List<String> names, List<Predicate<Object>> predicates, List<Boolean> independent) {
+            this.names = names;
+            this.predicates = predicates;
+            this.independent = independent;
+            this.reached = new AtomicLongArray(predicates.size());
+            this.passed = new AtomicLongArray(predicates.size());
+            this.nanos = new AtomicLongArray(predicates.size());
+            int[] initial = new int[predicates.size()];
+            boolean twoIndependentInARow = false;
+            for (int i = 0; i < initial.length; i++) {
+                initial[i] = i;
+                twoIndependentInARow |= i > 0 && independent.get(i - 1) && independent.get(i);
+            }
+            this.order = initial;
+            this.reorderable = twoIndependentInARow;
+        }
+
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            return stream.filter(this::test);
+        }
+
+        private boolean test(Object element) {
+            if (reorderable && !reordered.get()) {
+                return sample(element);
+            }
+            for (int i : order) {
+                if (!predicates.get(i).test(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // While sampling, the predicates run in the declared order and are measured on the elements they get.
+        private boolean sample(Object element) {
+            boolean result = true;
+            for (int i = 0; i < predicates.size() && result; i++) {
+                long start = System.nanoTime();
+                result = predicates.get(i).test(element);
+                nanos.addAndGet(i, System.nanoTime() - start);
+                reached.incrementAndGet(i);
+                if (result) {
+                    passed.incrementAndGet(i);
+                }
+            }
+            if (sampled.incrementAndGet() >= SAMPLE_SIZE && reordered.compareAndSet(false, true)) {
+                reorder();
+            }
+            return result;
+        }
+
+        /*
+            Classic rule for ordering filters: sort by cost / (1 - selectivity). A predicate that is cheap and
+            throws away most elements comes first, an expensive predicate that lets almost everything pass comes
+            last. Only runs of adjacent independent predicates are sorted, every other predicate keeps its place.
+         */
+        private void reorder() {
+            int[] result = order.clone();
+            int runStart = 0;
+            for (int i = 1; i <= result.length; i++) {
+                if (i == result.length || !independent.get(i) || !independent.get(i - 1)) {
+                    List<Integer> run = new ArrayList<>();
+                    for (int j = runStart; j < i; j++) {
+                        run.add(j);
+                    }
+                    run.sort(Comparator.comparingDouble(this::rank));
+                    for (int j = runStart; j < i; j++) {
+                        result[j] = run.get(j - runStart);
+                    }
+                    runStart = i;
+                }
+            }
+            order = result;
+        }
+
+        // Predicates that never got an element because the ones before threw away everything stay behind them.
+        private double rank(int predicate) {
+            long samples = reached.get(predicate);
+            if (samples == 0) {
+                return Double.MAX_VALUE;
+            }
+            double cost = (double) nanos.get(predicate) / samples;
+            double selectivity = (double) passed.get(predicate) / samples;
+            return cost / Math.max(1e-9, 1 - selectivity);
+        }
+
+        @Override
+        Operation fuseWith(Operation next) {
+            if (next instanceof FilterOperation) {
+                FilterOperation other = (FilterOperation) next;
+                List<String> allNames = new ArrayList<>(names);
+                allNames.addAll(other.names);
+                List<Predicate<Object>> all = new ArrayList<>(predicates);
+                all.addAll(other.predicates);
+                List<Boolean> allIndependent = new ArrayList<>(independent);
+                allIndependent.addAll(other.independent);
+                return new FilterOperation(allNames, all, allIndependent);
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            if (predicates.size() == 1) {
+                return "filter " + names.get(0);
+            }
+            StringBuilder result = new StringBuilder("filter (" + predicates.size() + " filters fused, ");
+            if (!reorderable) {
+                result.append("in declared order");
+            } else {
+                result.append(reordered.get() ? "independent ones ordered by measured cost and selectivity"
+                        : "not measured yet");
+            }
+            result.append("):");
+            for (int i : order) {
+                result.append(' ').append(names.get(i));
+                long samples = reached.get(i);
+                if (samples > 0) {
+                    result.append(String.format(" [passes %.0f%%, %.0f ns]",
+                            100.0 * passed.get(i) / samples, (double) nanos.get(i) / samples));
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    private static class SortOperation extends Operation {
+        private final Comparator<Object> comparator;
+
+        SortOperation(Comparator<Object> comparator) {
+            this.comparator = comparator;
+        }
+
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            return stream.sorted(comparator);
+        }
+
+        @Override
+        Operation fuseWith(Operation next) {
+            if (next instanceof LimitOperation) {
+                return new TopOperation(comparator, ((LimitOperation) next).maxSize);
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "sorted";
+        }
+    }
+
+    private static class LimitOperation extends Operation {
+        private final long maxSize;
+
+        LimitOperation(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            return stream.limit(maxSize);
+        }
+
+        @Override
+        public String toString() {
+            return "limit " + maxSize;
+        }
+    }
+
+    private static class PeekOperation extends Operation {
+        private final Consumer<Object> action;
+
+        PeekOperation(Consumer<Object> action) {
+            this.action = action;
+        }
+
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            return stream.peek(action);
+        }
+
+        @Override
+        public String toString() {
+            return "peek";
+        }
+    }
+
+    private static class DistinctOperation extends Operation {
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            return stream.distinct();
+        }
+
+        @Override
+        public String toString() {
+            return "distinct";
+        }
+    }
+
+    private static class UnorderedOperation extends Operation {
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            return stream.unordered();
+        }
+
+        @Override
+        public String toString() {
+            return "unordered (the terminal operation doesn't need the encounter order)";
+        }
+    }
+
+    /**
+     * sorted(comparator).limit(maxSize) with a heap of at most maxSize elements, see {@link TopK}.
+     */
+    private static class TopOperation extends Operation {
+        private final Comparator<Object> comparator;
+        private final long maxSize;
+
+        TopOperation(Comparator<Object> comparator, long maxSize) {
+            this.comparator = comparator;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        Stream<Object> apply(Stream<Object> stream) {
+            if (maxSize > Integer.MAX_VALUE - 8) {
+                return stream.sorted(comparator).limit(maxSize);
+            }
+            // The source is consumed by the terminal operation, not right here. Closing the result closes the source.
+            Supplier<Spliterator<Object>> top = () -> stream.collect(TopK.smallest((int) maxSize, comparator))
+                    .spliterator();
+            return StreamSupport.stream(top, Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED,
+                    stream.isParallel()).onClose(stream::close);
+        }
+
+        @Override
+        public String toString() {
+            return "top " + maxSize + " (sorted + limit, bounded heap instead of full sort)";
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package de.stevenschwenke.java.java8workshop;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exports large content page by page, without blocking the UI thread for the whole time.
+ * <p>
+ * The print button in C_09_JavaFX scales the whole scene and prints it in one go on the FX thread. For a big report,
+ * the UI freezes until it's done. This class splits the content into pages and every page into tiles. A background
+ * worker asks for one tile after the other - in JavaFX, a snapshot of a part of the node, which has to be taken on the
+ * FX thread. Between two tiles, the FX thread handles events as usual. The worker puts the tiles together to pages and
+ * hands them to a {@link PageSink}, for example one that encodes them as PNG files.
+ * <p>
+ * The content is scaled to the width of the page, keeping its aspect ratio. Only one page and one tile are in memory
+ * at the same time.
+ */
+public class TiledExport {
+
+    /**
+     * Renders a part of the content. Called on the worker, one tile at a time.
+     */
+    public interface TileSource {
+        /**
+         * @param area part of the content, in content coordinates
+         * @return image of the area, with the size of the area
+         */
+        CompletableFuture<BufferedImage> tile(Rectangle area);
+    }
+
+    /**
+     * Receives the finished pages. Called on the worker.
+     */
+    public interface PageSink {
+        void page(int index, BufferedImage page) throws IOException;
+    }
+
+    /**
+     * Progress of an export, called on the worker after every tile.
+     */
+    public interface ProgressListener {
+        void progress(int tilesDone, int tilesTotal);
+    }
+
+    private final int contentWidth;
+    private final int contentHeight;
+    private final int pageWidth;
+    private final int pageHeight;
+    private final int tileSize;
+    private final double scale;
+    private long tileTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * @param contentWidth  width of the content
+     * @param contentHeight height of the content
+     * @param pageWidth     width of a page in pixels, for example 794 for A4 at 96 dpi
+     * @param pageHeight    height of a page in pixels, for example 1123 for A4 at 96 dpi
+     * @param tileSize      width and height of a tile in content coordinates
+     */
+    public TiledExport(int contentWidth, int contentHeight, int pageWidth, int pageHeight, int tileSize) {
+        if (contentWidth < 1 || contentHeight < 1 || pageWidth < 1 || pageHeight < 1 || tileSize < 1) {
+            throw new IllegalArgumentException("Sizes have to be positive");
+        }
+        this.contentWidth = contentWidth;
+        this.contentHeight = contentHeight;
+        this.pageWidth = pageWidth;
+        this.pageHeight = pageHeight;
+        this.tileSize = tileSize;
+        this.scale = (double) pageWidth / contentWidth;
+    }
+
+    /**
+     * An export fails with a {@link TimeoutException} if a tile isn't rendered in time, for example because the UI
+     * thread hangs. Default is 30 seconds.
+     */
+    public void setTileTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("Timeout has to be positive");
+        }
+        this.tileTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Writes every page as PNG file "page-1.png", "page-2.png", ... into the directory.
+     */
+    public static PageSink pngFiles(Path directory) {
+        return (index, page) -> ImageIO.write(page, "png", directory.resolve("page-" + (index + 1) + ".png").toFile());
+    }
+
+    /**
+     * @return parts of the content on the pages, in content coordinates
+     */
+    public List<Rectangle> pages() {
+        int contentPerPage = Math.max(1, (int) Math.floor(pageHeight / scale));
+        List<Rectangle> pages = new ArrayList<>();
+        for (int y = 0; y < contentHeight; y += contentPerPage) {
+            pages.add(new Rectangle(0, y, contentWidth, Math.min(contentPerPage, contentHeight - y)));
+        }
+        return pages;
+    }
+
+    /**
+     * @param page part of the content on a page
+     * @return tiles of the page, row by row
+     */
+    public List<Rectangle> tiles(Rectangle page) {
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = page.y; y < page.y + page.height; y += tileSize) {
+            for (int x = page.x; x < page.x + page.width; x += tileSize) {
+                tiles.add(new Rectangle(x, y, Math.min(tileSize, page.x + page.width - x),
+                        Math.min(tileSize, page.y + page.height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Starts the export on the worker and returns right away. Cancelling the returned future stops the export after
+     * the tile that's being rendered.
+     *
+     * @param source   renders the tiles
+     * @param sink     receives the pages
+     * @param worker   puts the pages together and calls the sink
+     * @param progress informed after every tile
+     * @return future of the number of pages
+     */
+    public CompletableFuture<Integer> export(TileSource source, PageSink sink, Executor worker,
+                                             ProgressListener progress) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        worker.execute(() -> {
+            try {
+                List<Rectangle> pages = pages();
+                int total = pages.stream().mapToInt(page -> tiles(page).size()).sum();
+                int done = 0;
+                for (int p = 0; p < pages.size(); p++) {
+                    BufferedImage image = new BufferedImage(pageWidth, pageHeight, BufferedImage.TYPE_INT_RGB);
+                    Graphics2D graphics = image.createGraphics();
+                    try {
+                        graphics.setColor(Color.WHITE);
+                        graphics.fillRect(0, 0, pageWidth, pageHeight);
+                        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                        for (Rectangle tile : tiles(pages.get(p))) {
+                            if (result.isDone()) {
+                                return;
+                            }
+                            draw(graphics, pages.get(p), tile, render(source, tile));
+                            progress.progress(++done, total);
+                        }
+                    } finally {
+                        graphics.dispose();
+                    }
+                    sink.page(p, image);
+                }
+                result.complete(pages.size());
+            } catch (ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private BufferedImage render(TileSource source, Rectangle area)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        CompletableFuture<BufferedImage> tile = source.tile(area);
+        try {
+            return tile.get(tileTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            tile.cancel(false);
+            throw new TimeoutException("Tile " + area.x + "," + area.y + " not rendered within " + tileTimeoutMillis
+                    + " ms");
+        }
+    }
+
+    // Both corners are rounded on their own, so neighbouring tiles meet without gaps.
+    private void draw(Graphics2D graphics, Rectangle page, Rectangle tile, BufferedImage image) {
+        int x1 = (int) Math.round((tile.x - page.x) * scale);
+        int y1 = (int) Math.round((tile.y - page.y) * scale);
+        int x2 = (int) Math.round((tile.x + tile.width - page.x) * scale);
+        int y2 = (int) Math.round((tile.y + tile.height - page.y) * scale);
+        graphics.drawImage(image, x1, y1, x2, y2, 0, 0, image.getWidth(), image.getHeight(), null);
+    }
+
+    public double getScale() {
+        return scale;
+    }
+}
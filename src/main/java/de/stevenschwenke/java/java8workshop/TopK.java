@@ -0,0 +1,322 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.LongStream;
+
+/**
+ * Collectors for the k smallest or largest elements of a stream.
+ * <p>
+ * {@code sorted().limit(k)} has to buffer and sort the whole stream: O(n) memory and O(n log n) time. These
+ * collectors keep only a heap of k elements: O(k) memory and O(n log k) time. Every thread of a parallel stream has
+ * its own heap, at the end the heaps are merged.
+ * <p>
+ * Don't mix this up with {@code limit(k).sorted()} - that sorts the first k elements, not the k smallest ones.
+ */
+public final class TopK {
+
+    // The heaps grow up to k, so a large k on a short stream (or on every part of a parallel one) costs nothing.
+    private static final int INITIAL_CAPACITY = 16;
+
+    private TopK() {
+        // only static factories
+    }
+
+    /**
+     * Same result as {@code sorted(comparator).limit(k).collect(toList())}, including the order of elements that are
+     * equal for the comparator.
+     *
+     * @param k          maximum number of elements
+     * @param comparator order of the elements
+     * @param <T>        type of the elements
+     * @return collector for the k smallest elements in ascending order
+     */
+    public static <T> Collector<T, ?, List<T>> smallest(int k, Comparator<? super T> comparator) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        // Every element remembers its position in the stream to break ties just like the stable sorted(). Parallel
+        // partial results are merged left to right, so the positions of the right part come after the left part.
+        Comparator<Positioned<T>> byElementThenPosition = Comparator.<Positioned<T>, T>comparing(p -> p.element,
+                comparator).thenComparingLong(p -> p.position);
+        return Collector.of(
+                () -> new BoundedHeap<>(k, byElementThenPosition),
+                (heap, element) -> heap.offer(new Positioned<>(element, heap.seen++)),
+                (left, right) -> {
+                    for (Positioned<T> p : right.heap) {
+                        left.offer(new Positioned<>(p.element, left.seen + p.position));
+                    }
+                    left.seen += right.seen;
+                    return left;
+                },
+                heap -> {
+                    List<Positioned<T>> sorted = new ArrayList<>(heap.heap);
+                    sorted.sort(byElementThenPosition);
+                    return sorted.stream().map(p -> p.element).collect(Collectors.toList());
+                });
+    }
+
+    /**
+     * @param k          maximum number of elements
+     * @param comparator order of the elements
+     * @param <T>        type of the elements
+     * @return collector for the k largest elements in descending order
+     */
+    public static <T> Collector<T, ?, List<T>> largest(int k, Comparator<? super T> comparator) {
+        return smallest(k, comparator.reversed());
+    }
+
+    public static <T extends Comparable<? super T>> Collector<T, ?, List<T>> smallest(int k) {
+        return smallest(k, Comparator.<T>naturalOrder());
+    }
+
+    public static <T extends Comparable<? super T>> Collector<T, ?, List<T>> largest(int k) {
+        return smallest(k, Comparator.<T>reverseOrder());
+    }
+
+    /**
+     * @param stream of primitive doubles, no boxing involved
+     * @param k      maximum number of elements
+     * @return the k largest values in descending order
+     */
+    public static double[] largest(DoubleStream stream, int k) {
+        return stream.collect(() -> new DoubleHeap(k, true), DoubleHeap::offer, DoubleHeap::merge).toSortedArray();
+    }
+
+    /**
+     * @param stream of primitive doubles, no boxing involved
+     * @param k      maximum number of elements
+     * @return the k smallest values in ascending order
+     */
+    public static double[] smallest(DoubleStream stream, int k) {
+        return stream.collect(() -> new DoubleHeap(k, false), DoubleHeap::offer, DoubleHeap::merge).toSortedArray();
+    }
+
+    /**
+     * @param stream of primitive longs, no boxing involved
+     * @param k      maximum number of elements
+     * @return the k largest values in descending order
+     */
+    public static long[] largest(LongStream stream, int k) {
+        return stream.collect(() -> new LongHeap(k, true), LongHeap::offer, LongHeap::merge).toSortedArray();
+    }
+
+    /**
+     * @param stream of primitive longs, no boxing involved
+     * @param k      maximum number of elements
+     * @return the k smallest values in ascending order
+     */
+    public static long[] smallest(LongStream stream, int k) {
+        return stream.collect(() -> new LongHeap(k, false), LongHeap::offer, LongHeap::merge).toSortedArray();
+    }
+
+    private static class Positioned<T> {
+        private final T element;
+        private final long position;
+
+        Positioned(T element, long position) {
+            this.element = element;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Heap with the largest of the kept elements on top, so it's the one to throw out when a smaller one comes.
+     */
+    private static class BoundedHeap<E> {
+        private final int k;
+        private final Comparator<E> comparator;
+        private final PriorityQueue<E> heap;
+        private long seen;
+
+        BoundedHeap(int k, Comparator<E> comparator) {
+            this.k = k;
+            this.comparator = comparator;
+            this.heap = new PriorityQueue<>(Math.max(1, Math.min(k, INITIAL_CAPACITY)),
+                    comparator.reversed());
+        }
+
+        void offer(E element) {
+            if (heap.size() < k) {
+                heap.add(element);
+            } else if (k > 0 && comparator.compare(element, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(element);
+            }
+        }
+    }
+
+    /*
+        The primitive heaps are binary heaps in a plain array. The element on top (index 0) is the one that goes
+        first: the smallest kept value when looking for the largest values and vice versa.
+     */
+
+    private static class DoubleHeap {
+        private final int k;
+        private final boolean largest;
+        private double[] values;
+        private int size;
+
+        DoubleHeap(int k, boolean largest) {
+            if (k < 0) {
+                throw new IllegalArgumentException("k must not be negative: " + k);
+            }
+            this.k = k;
+            this.values = new double[Math.min(k, INITIAL_CAPACITY)];
+            this.largest = largest;
+        }
+
+        // true if a belongs further down in the heap than b
+        private boolean below(double a, double b) {
+            int c = Double.compare(a, b);
+            return largest ? c > 0 : c < 0;
+        }
+
+        void offer(double value) {
+            if (size < k) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, (int) Math.min(k, 2L * size));
+                }
+                int i = size++;
+                values[i] = value;
+                while (i > 0 && below(values[(i - 1) / 2], values[i])) {
+                    swap((i - 1) / 2, i);
+                    i = (i - 1) / 2;
+                }
+            } else if (size > 0 && below(value, values[0])) {
+                values[0] = value;
+                siftDown();
+            }
+        }
+
+        private void siftDown() {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && below(values[child], values[child + 1])) {
+                    child++;
+                }
+                if (!below(values[i], values[child])) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int a, int b) {
+            double t = values[a];
+            values[a] = values[b];
+            values[b] = t;
+        }
+
+        void merge(DoubleHeap other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.values[i]);
+            }
+        }
+
+        double[] toSortedArray() {
+            double[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+            if (largest) {
+                for (int i = 0; i < result.length / 2; i++) {
+                    double t = result[i];
+                    result[i] = result[result.length - 1 - i];
+                    result[result.length - 1 - i] = t;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class LongHeap {
+        private final int k;
+        private final boolean largest;
+        private long[] values;
+        private int size;
+
+        LongHeap(int k, boolean largest) {
+            if (k < 0) {
+                throw new IllegalArgumentException("k must not be negative: " + k);
+            }
+            this.k = k;
+            this.values = new long[Math.min(k, INITIAL_CAPACITY)];
+            this.largest = largest;
+        }
+
+        // true if a belongs further down in the heap than b
+        private boolean below(long a, long b) {
+            return largest ? a > b : a < b;
+        }
+
+        void offer(long value) {
+            if (size < k) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, (int) Math.min(k, 2L * size));
+                }
+                int i = size++;
+                values[i] = value;
+                while (i > 0 && below(values[(i - 1) / 2], values[i])) {
+                    swap((i - 1) / 2, i);
+                    i = (i - 1) / 2;
+                }
+            } else if (size > 0 && below(value, values[0])) {
+                values[0] = value;
+                siftDown();
+            }
+        }
+
+        private void siftDown() {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && below(values[child], values[child + 1])) {
+                    child++;
+                }
+                if (!below(values[i], values[child])) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long t = values[a];
+            values[a] = values[b];
+            values[b] = t;
+        }
+
+        void merge(LongHeap other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.values[i]);
+            }
+        }
+
+        long[] toSortedArray() {
+            long[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+            if (largest) {
+                for (int i = 0; i < result.length / 2; i++) {
+                    long t = result[i];
+                    result[i] = result[result.length - 1 - i];
+                    result[result.length - 1 - i] = t;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package de.stevenschwenke.java.java8workshop;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Brings updates from background threads to the UI thread without flooding it.
+ * <p>
+ * Calling Platform.runLater(...) for every update of a producer that updates ten thousand times per second puts ten
+ * thousand Runnables per second into the queue of the FX thread - far more than it can show. This class collects the
+ * updates instead and hands them to the UI thread in one go:
+ * <ul>
+ * <li>values: only the last value per target is applied, the ones before are dropped (coalesced)</li>
+ * <li>list elements: all elements added to a list are added with one addAll(...), which is one change event of an
+ * ObservableList instead of one per element</li>
+ * </ul>
+ * The UI thread applies everything that has arrived once per frame by calling {@link #flush()} - in JavaFX from an
+ * AnimationTimer. So there's at most one flush per frame no matter how fast the producers are. A flush handed to
+ * Platform.runLater(...) whenever the previous one is done would not be bound to the frames: the FX thread would run
+ * flush after flush between two pulses. The order of updates of different targets is not kept.
+ */
+public class UpdateCoalescer {
+
+    private final Object lock = new Object();
+
+    // Identity, not equals: two lists with the same elements are still two lists.
+    private Map<Object, Runnable> pendingValues = new IdentityHashMap<>();
+    private Map<List<Object>, List<Object>> pendingElements = new IdentityHashMap<>();
+
+    private long submitted;
+    private long coalesced;
+    private long batched;
+    private long flushes;
+
+    /**
+     * Sets a value on the UI thread, unless another value for the same target comes first.
+     *
+     * @param target identifies what's updated, for example the property. Compared by identity.
+     * @param setter applies the value on the UI thread
+     * @param value  new value
+     * @param <T>    type of the value
+     */
+    public <T> void set(Object target, Consumer<? super T> setter, T value) {
+        synchronized (lock) {
+            submitted++;
+            if (pendingValues.put(target, () -> setter.accept(value)) != null) {
+                coalesced++;
+            }
+        }
+    }
+
+    /**
+     * Adds an element to a list on the UI thread, together with all other elements added until then.
+     *
+     * @param list    list to add to, for example the items of a ListView. Compared by identity.
+     * @param element element to add
+     * @param <T>     type of the elements
+     */
+    public <T> void add(List<T> list, T element) {
+        addAll(list, Collections.singletonList(element));
+    }
+
+    /**
+     * Like {@link #add(List, Object)} for several elements.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void addAll(List<T> list, Collection<? extends T> elements) {
+        synchronized (lock) {
+            submitted += elements.size();
+            List<Object> pending = pendingElements.get(list);
+            if (pending == null) {
+                pending = new ArrayList<>();
+                pendingElements.put((List<Object>) list, pending);
+            } else {
+                batched += elements.size();
+            }
+            pending.addAll(elements);
+        }
+    }
+
+    /**
+     * Applies everything that's waiting. Called on the UI thread once per frame, for example from an AnimationTimer
+     * or {@link HeadlessUiThread#addPulseListener(Runnable)}.
+     */
+    public void flush() {
+        Map<Object, Runnable> values;
+        Map<List<Object>, List<Object>> elements;
+        synchronized (lock) {
+            values = pendingValues;
+            elements = pendingElements;
+            pendingValues = new IdentityHashMap<>();
+            pendingElements = new IdentityHashMap<>();
+            if (values.isEmpty() && elements.isEmpty()) {
+                return;
+            }
+            flushes++;
+        }
+        values.values().forEach(Runnable::run);
+        elements.forEach(List::addAll);
+    }
+
+    /**
+     * @return number of values and elements given to this coalescer
+     */
+    public long getSubmitted() {
+        synchronized (lock) {
+            return submitted;
+        }
+    }
+
+    /**
+     * @return number of values that were dropped because a newer value for the same target came before the flush
+     */
+    public long getCoalesced() {
+        synchronized (lock) {
+            return coalesced;
+        }
+    }
+
+    /**
+     * @return number of elements that were added together with elements submitted before them
+     */
+    public long getBatched() {
+        synchronized (lock) {
+            return batched;
+        }
+    }
+
+    /**
+     * @return number of frames in which the UI thread had something to apply
+     */
+    public long getFlushes() {
+        synchronized (lock) {
+            return flushes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return String.format("%d updates, %d coalesced, %d batched, %d flushes", submitted, coalesced, batched,
+                    flushes);
+        }
+    }
+}
@@ -226,6 +226,78 @@ public class C_01_FunctionalInterfacesAndLambdas {
         }
     }
 
+    /**
+     * Chains of predicates and functions can be fused into one lambda with {@link LambdaFusion}. The result is the
+     * same, only the way the JVM executes it differs.
+     */
+    @Test
+    public void fusingChains() {
+
+        Predicate<Integer> chained = ((Predicate<Integer>) n -> n > 2).and(n -> n % 2 == 0).or(n -> n == 1).negate();
+        Predicate<Integer> fused = LambdaFusion.<Integer>predicate(n -> n > 2).and(n -> n % 2 == 0).or(n -> n == 1)
+                .negate().fuse();
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(chained.test(i), fused.test(i));
+        }
+
+        Function<Integer, Integer> add37Duplicate = LambdaFusion.function((Integer x) -> x + 37).andThen(x -> x * 2)
+                .fuse();
+        assertEquals(84, add37Duplicate.apply(5).intValue());
+
+        // All fused predicates share one class, fusing a chain doesn't define a new one:
+        Predicate<Integer> otherFused = LambdaFusion.<Integer>predicate(n -> n > 2).fuse();
+        assertEquals(fused.getClass(), otherFused.getClass());
+    }
+
+    /**
+     * Playground for comparing deep chains built with {@link Predicate#and(Predicate)} with fused chains. Play with
+     * the depth of the chains.
+     */
+    @Test
+    public void fusedChainPerformance() {
+        int depth = 16;
+        int rounds = 2_000_000;
+
+        Predicate<Integer> chained = n -> n >= 0;
+        LambdaFusion.FusablePredicate<Integer> fusable = LambdaFusion.predicate(n -> n >= 0);
+        for (int i = 1; i < depth; i++) {
+            int limit = -i;
+            chained = chained.and(n -> n > limit);
+            fusable = fusable.and(n -> n > limit);
+        }
+        Predicate<Integer> fused = fusable.fuse();
+
+        // warm up both, otherwise we measure the interpreter
+        count(chained, rounds);
+        count(fused, rounds);
+
+        long start = System.nanoTime();
+        long chainedHits = count(chained, rounds);
+        long durationChained = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long fusedHits = count(fused, rounds);
+        long durationFused = System.nanoTime() - start;
+
+        assertEquals(chainedHits, fusedHits);
+        System.out.println("Chained with and(): " + durationChained / 1_000_000 + " ms");
+        System.out.println("Fused:              " + durationFused / 1_000_000 + " ms");
+
+        // As always with micro benchmarks: the numbers depend heavily on the machine and the JVM. Run it a couple of
+        // times before drawing conclusions.
+    }
+
+    private long count(Predicate<Integer> predicate, int rounds) {
+        long hits = 0;
+        for (int i = 0; i < rounds; i++) {
+            if (predicate.test(i & 1023)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
     /*
         Having understood this, a little party knowledge on the side:
         - "lambda" comes from the Lambda Calculus which simply is a formal system for computation.
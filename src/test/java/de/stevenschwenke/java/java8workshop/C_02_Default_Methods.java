@@ -3,6 +3,9 @@ package de.stevenschwenke.java.java8workshop;
 import de.stevenschwenke.java.java8workshop.*;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
@@ -42,6 +45,121 @@ public class C_02_Default_Methods {
         System.out.println(gen2.getSomeString());
     }
 
+    /**
+     * Playground for measuring calls of default methods. Play with the number of different implementations in the
+     * array: one class is "monomorphic", two are "bimorphic", more are "megamorphic" and can't be inlined by the JIT
+     * any more.
+     */
+    @Test
+    public void defaultMethodDispatchPerformance() {
+        // The JIT remembers the classes per call site, not per test. That's why every configuration has its own loop
+        // below: if mono, bi and mega went through the same loop, the warm-up with mega would have made the call site
+        // megamorphic before mono and bi were measured. Mega runs last because DefaultMethodDispatch is shared.
+        measure(createImplementations(1), this::sumMonomorphic, a -> DefaultMethodDispatch.sumOfAddStuff(a, 3));
+        measure(createImplementations(2), this::sumBimorphic, a -> DefaultMethodDispatch.sumOfAddStuff(a, 3));
+        measure(createImplementations(4), this::sumMegamorphic, a -> DefaultMethodDispatch.sumOfAddStuff(a, 3));
+
+        // The JIT still doesn't forget what it saw in other tests. Run the configurations in separate JVMs for clean
+        // numbers.
+    }
+
+    /**
+     * The same for a hierarchy of default methods: generation 2 overrides the default method of generation 1. Which
+     * one is called depends on the class, so these are different implementations for the JIT, too.
+     */
+    @Test
+    public void layeredDefaultMethodDispatchPerformance() {
+        InterfaceWithDefaultMethodGen1[] kinds = {
+                new DefaultMethodGen1Class(),
+                new DefaultMethodGen2Class(),
+                new InterfaceWithDefaultMethodGen1() {
+                },
+                new InterfaceWithDefaultMethodGen2() {
+                }};
+        assertEquals("Hello there. I am the honorable generation 1.", kinds[0].getSomeString());
+        assertEquals("Hi! I'm the fancy dancy fresh gen 2!", kinds[1].getSomeString());
+
+        InterfaceWithDefaultMethodGen1[] generations = new InterfaceWithDefaultMethodGen1[1_000_000];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = kinds[i % kinds.length];
+        }
+        measure(generations, this::sumOfSomeStringLengths, DefaultMethodDispatch::sumOfSomeStringLengths);
+    }
+
+    private <T> void measure(T[] implementations, ToLongFunction<T[]> viaInterface, ToLongFunction<T[]> viaDispatch) {
+        // warm up, otherwise we measure the interpreter
+        for (int i = 0; i < 10; i++) {
+            viaInterface.applyAsLong(implementations);
+            viaDispatch.applyAsLong(implementations);
+        }
+
+        long start = System.nanoTime();
+        long sumViaInterface = viaInterface.applyAsLong(implementations);
+        long durationViaInterface = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long sumViaDispatch = viaDispatch.applyAsLong(implementations);
+        long durationViaDispatch = System.nanoTime() - start;
+
+        assertEquals(sumViaInterface, sumViaDispatch);
+        System.out.println(Arrays.stream(implementations).map(Object::getClass).distinct().count()
+                + " implementation(s): interface call " + durationViaInterface / 1_000_000 + " ms, "
+                + "DefaultMethodDispatch " + durationViaDispatch / 1_000_000 + " ms");
+    }
+
+    private InterfaceWithDefaultMethod[] createImplementations(int numberOfClasses) {
+        InterfaceWithDefaultMethod[] kinds = {
+                new DefaultMethodImplementingEmptyClass(),
+                new DefaultMethodOverridingClass(),
+                new InterfaceWithDefaultMethod() {
+                },
+                new InterfaceWithDefaultMethod() {
+                    @Override
+                    public int addStuff(int base) {
+                        return base;
+                    }
+                }};
+        InterfaceWithDefaultMethod[] implementations = new InterfaceWithDefaultMethod[1_000_000];
+        for (int i = 0; i < implementations.length; i++) {
+            implementations[i] = kinds[i % numberOfClasses];
+        }
+        return implementations;
+    }
+
+    // The three loops are the same on purpose, each one is a call site of its own.
+
+    private long sumMonomorphic(InterfaceWithDefaultMethod[] implementations) {
+        long sum = 0;
+        for (InterfaceWithDefaultMethod i : implementations) {
+            sum += i.addStuff(3);
+        }
+        return sum;
+    }
+
+    private long sumBimorphic(InterfaceWithDefaultMethod[] implementations) {
+        long sum = 0;
+        for (InterfaceWithDefaultMethod i : implementations) {
+            sum += i.addStuff(3);
+        }
+        return sum;
+    }
+
+    private long sumMegamorphic(InterfaceWithDefaultMethod[] implementations) {
+        long sum = 0;
+        for (InterfaceWithDefaultMethod i : implementations) {
+            sum += i.addStuff(3);
+        }
+        return sum;
+    }
+
+    private long sumOfSomeStringLengths(InterfaceWithDefaultMethodGen1[] implementations) {
+        long sum = 0;
+        for (InterfaceWithDefaultMethodGen1 i : implementations) {
+            sum += i.getSomeString().length();
+        }
+        return sum;
+    }
+
     /**
      * This class inherits unrelated defaults for the method foo() and thus cannot exist:
      */
@@ -13,6 +13,8 @@ import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.*;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -79,6 +81,44 @@ public class C_04_Streams {
         stream2.close();
     }
 
+    /**
+     * Attention: limit(3).sorted() sorts the first three elements. To get the three smallest elements, the whole
+     * stream has to be looked at. sorted().limit(3) does that by sorting everything, {@link TopK} just keeps the
+     * three smallest elements seen so far.
+     */
+    @Test
+    public void topKWithoutSortingEverything() {
+        List<Double> randomNumbers = new SplittableRandom(42).doubles(1_000_000).boxed().collect(Collectors.toList());
+
+        long start = System.currentTimeMillis();
+        List<Double> sortedAndLimited = randomNumbers.parallelStream().sorted().limit(3).collect(Collectors.toList());
+        System.out.println("sorted().limit(3): " + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        List<Double> smallest = randomNumbers.parallelStream().collect(TopK.smallest(3));
+        System.out.println("TopK.smallest(3):  " + (System.currentTimeMillis() - start) + " ms");
+
+        assertEquals(sortedAndLimited, smallest);
+
+        // There are versions for primitive streams that don't box anything:
+        double[] largest = TopK.largest(new SplittableRandom(42).doubles(1_000_000).parallel(), 3);
+        assertEquals(randomNumbers.stream().sorted(Comparator.reverseOrder()).findFirst().get(), largest[0], 0);
+    }
+
+    @Test
+    public void topKWithLargeK() {
+        // The heaps grow with the elements, k is only the maximum. A huge k on a short stream needs no memory:
+        int k = Integer.MAX_VALUE - 100;
+        assertEquals(Arrays.asList(1, 2, 3), Stream.of(3, 1, 2).parallel().collect(TopK.smallest(k)));
+        assertArrayEquals(new long[]{3, 2, 1}, TopK.largest(LongStream.of(1, 2, 3).parallel(), k));
+        assertArrayEquals(new double[]{1, 2, 3}, TopK.smallest(DoubleStream.of(3, 2, 1), k), 0);
+        assertArrayEquals(new long[]{99, 98}, TopK.largest(LongStream.range(0, 100), 2));
+
+        // StreamPipeline turns sorted().limit(n) into TopK:
+        assertEquals(Arrays.asList(1, 2, 3), StreamPipeline.<Integer>start().sorted().limit(500_000_000)
+                .toList(Stream.of(3, 1, 2)));
+    }
+
     @Test
     public void primitiveStreams() {
 
@@ -135,6 +175,61 @@ public class C_04_Streams {
         // "As an memory-efficient alternative you could use the method Files.lines. Instead of reading all lines into memory at once, this method reads and streams each line one by one via functional streams."
     }
 
+    /**
+     * Files.lines(...) doesn't read the whole file into memory - but Files.lines(...).sorted() does, because sorted()
+     * has to see every line before it can return the first one. {@link ExternalSort} sorts chunks of the file in memory,
+     * writes them to temporary files and merges them lazily.
+     */
+    @Test
+    public void sortingFilesLargerThanMemory() throws IOException {
+        Path file = Files.createTempFile("lines", ".txt");
+        try {
+            Files.write(file, new SplittableRandom(42).ints(200_000, 0, 1_000_000)
+                    .mapToObj(i -> "line " + i).collect(Collectors.toList()));
+
+            // At most 10.000 lines per chunk are sorted in memory, the chunks are sorted in parallel.
+            ExternalSort<String> externalSort = new ExternalSort<>(Comparator.naturalOrder(),
+                    ExternalSort.Codec.strings(), 10_000);
+            long start = System.currentTimeMillis();
+            List<String> sorted;
+            try (Stream<String> lines = externalSort.sort(Files.lines(file))) {
+                sorted = lines.collect(Collectors.toList());
+            }
+            System.out.println("ExternalSort: " + (System.currentTimeMillis() - start) + " ms");
+
+            try (Stream<String> lines = Files.lines(file)) {
+                assertEquals(lines.sorted().collect(Collectors.toList()), sorted);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Writing elements one by one to a database or a file is slow, writing them in batches is fast. {@link Batches}
+     * groups the elements of a stream - in parallel streams as well.
+     */
+    @Test
+    public void batchingForBulkOperations() {
+        List<Integer> rows = IntStream.range(0, 10_000).boxed().collect(Collectors.toList());
+
+        // 10 "bulk inserts" instead of 10.000 single ones:
+        List<List<Integer>> chunks = Batches.chunked(rows.parallelStream(), 1000).collect(Collectors.toList());
+        assertEquals(10, chunks.size());
+        assertEquals(Integer.valueOf(1000), chunks.get(1).get(0));
+
+        // If the chunks are written right away, one array per thread is enough:
+        AtomicInteger written = new AtomicInteger();
+        Batches.forEachChunk(rows.parallelStream(), 1000, chunk -> written.addAndGet(chunk.size()));
+        assertEquals(10_000, written.get());
+
+        // Sliding windows, for example for a moving average over three elements:
+        List<Double> movingAverage = Batches.windowed(Stream.of(1, 2, 3, 4, 5), 3, 1)
+                .map(window -> window.stream().mapToInt(i -> i).average().getAsDouble())
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList(2.0, 3.0, 4.0), movingAverage);
+    }
+
     @Test
     public void parallelStreamsRunMultiThreaded() {
         List<String> stringList = Arrays.asList("first", "second", "third", "fourth");
@@ -215,6 +310,38 @@ public class C_04_Streams {
         }).count();
     }
 
+    /**
+     * {@link SnapshotList} can only grow, so a stream can just look at the elements that were there when it started.
+     * No ConcurrentModificationException, and nothing is copied.
+     */
+    @Test
+    public void alteringDataSourceOfAStreamWithSnapshots() throws InterruptedException {
+        SnapshotList<String> list = new SnapshotList<>();
+        list.add("1");
+        list.add("2");
+        // (Not with peek(...).count(): since Java 9, count() skips peek for sources of known size.)
+        List<String> seen = list.stream().map(x -> {
+            System.out.println(x);
+            list.add("NEW"); // no exception, the stream doesn't see the new elements
+            return x;
+        }).collect(Collectors.toList());
+        assertEquals(Arrays.asList("1", "2"), seen);
+        assertEquals(4, list.size());
+
+        // A producer keeps adding while consumers sum up what's there. Every snapshot is consistent: it contains
+        // exactly the numbers 0 .. size-1.
+        SnapshotList<Integer> numbers = new SnapshotList<>();
+        Thread producer = new Thread(() -> IntStream.range(0, 1_000_000).forEach(numbers::add));
+        producer.start();
+        while (producer.isAlive()) {
+            SnapshotList.Snapshot<Integer> snapshot = numbers.snapshot();
+            long n = snapshot.size();
+            assertEquals(n * (n - 1) / 2, snapshot.parallelStream().mapToLong(i -> i).sum());
+        }
+        producer.join();
+        assertEquals(1_000_000, numbers.size());
+    }
+
     @Test
     public void nonInterference() {
         // Although the elements of the underlying collection should not be changed by a stream, it sure is possible,
@@ -233,6 +360,49 @@ public class C_04_Streams {
         System.out.println(simpleClass1.getX()); // "42" -> the underlying object has been altered by the stream!
     }
 
+    /**
+     * A {@link NonInterferenceChecker} compares the state of the elements and of the captured variables before and
+     * after every lambda. Run the pipelines of your tests with it, and you know they are safe to run in parallel.
+     */
+    @Test
+    public void nonInterferenceChecked() {
+        NonInterferenceChecker checker = new NonInterferenceChecker();
+        Stream.of(new SimpleClass(1), new SimpleClass(2))
+                .peek(checker.consumer("peek", x -> x.setX(42)))
+                .forEach(System.out::println);
+        System.out.println(checker.getViolations()); // [peek changed element.x from 1 to 42, ...]
+        assertEquals(2, checker.getViolations().size());
+
+        // Also finds lambdas that change variables they captured. With a StreamPipeline, every lambda is checked:
+        List<Integer> seen = new ArrayList<>();
+        NonInterferenceChecker pipelineChecker = new NonInterferenceChecker();
+        StreamPipeline<SimpleClass, Integer> pipeline = StreamPipeline.<SimpleClass>start(pipelineChecker)
+                .filter("positive", x -> x.getX() > 0)
+                .map(SimpleClass::getX)
+                .peek(seen::add);
+        pipeline.toList(Stream.of(new SimpleClass(1), new SimpleClass(2)));
+        System.out.println(pipelineChecker.getViolations()); // [peek1 changed captured arg$1.size() from 0 to 1, ...]
+        assertTrue(pipelineChecker.getViolations().stream().allMatch(v -> v.startsWith("peek1")));
+
+        // Counters and builders are mutable, even if they are Numbers or CharSequences:
+        AtomicInteger counter = new AtomicInteger();
+        NonInterferenceChecker counterChecker = new NonInterferenceChecker();
+        Stream.of(new StringBuilder("a"), new StringBuilder("b"))
+                .map(counterChecker.function("map", builder -> builder.append(counter.incrementAndGet())))
+                .forEach(System.out::println);
+        System.out.println(counterChecker.getViolations()); // [map changed element from a to a1, ...]
+        assertEquals(4, counterChecker.getViolations().size());
+
+        // A clean pipeline passes:
+        NonInterferenceChecker cleanChecker = new NonInterferenceChecker();
+        List<Integer> result = StreamPipeline.<SimpleClass>start(cleanChecker)
+                .filter("positive", x -> x.getX() > 0)
+                .map(SimpleClass::getX)
+                .toList(Stream.of(new SimpleClass(1), new SimpleClass(2)).parallel());
+        cleanChecker.verify();
+        assertEquals(Arrays.asList(1, 2), result);
+    }
+
     public class SimpleClass {
         private int x;
 
@@ -3,8 +3,17 @@ package de.stevenschwenke.java.java8workshop;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -97,4 +106,100 @@ public class C_05_ClassifyingStreams {
     it has to copy the whole stream in order to compare its elements.
      */
 
+    /*
+    Splitting the source of parallel streams
+
+    A parallel stream splits its source into parts that are processed by different threads. How well a source can be
+    split is described by the characteristics of its Spliterator:
+    - SIZED: the number of elements is known
+    - SUBSIZED: the parts after a split know their number of elements as well
+    - ORDERED: the elements have an encounter order that has to be kept, for example in findFirst() or collect()
+
+    An ArrayList is SIZED and SUBSIZED and splits exactly in halves. A LinkedList claims to be SUBSIZED as well, but
+    it has to walk through its nodes and copies batches of 1024, 2048, ... elements into arrays. Stream.iterate(...)
+    doesn't even know when it ends. The more elements in one part, the longer the other threads wait for the thread
+    processing it.
+     */
+    @Test
+    public void findingOutWhyParallelStreamsDontScale() {
+        List<Integer> arrayList = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+        List<Integer> linkedList = new LinkedList<>(arrayList);
+
+        SplitDiagnostics<Integer> arrayListDiagnostics = SplitDiagnostics.of(arrayList.spliterator());
+        arrayListDiagnostics.parallelStream().mapToInt(i -> i).sum();
+        System.out.println("ArrayList:\n" + arrayListDiagnostics.report() + "\n");
+
+        SplitDiagnostics<Integer> linkedListDiagnostics = SplitDiagnostics.of(linkedList.spliterator());
+        linkedListDiagnostics.parallelStream().mapToInt(i -> i).sum();
+        System.out.println("LinkedList:\n" + linkedListDiagnostics.report() + "\n");
+
+        SplitDiagnostics<Integer> iterateDiagnostics = SplitDiagnostics.of(
+                Stream.iterate(0, i -> i + 1).limit(100_000).spliterator());
+        iterateDiagnostics.parallelStream().mapToInt(i -> i).sum();
+        System.out.println("Stream.iterate:\n" + iterateDiagnostics.report());
+
+        assertTrue(arrayListDiagnostics.report().isSubsized());
+        assertTrue(arrayListDiagnostics.report().getImbalance() < 2);
+        assertTrue(arrayListDiagnostics.report().getProblems().isEmpty());
+        assertFalse(linkedListDiagnostics.report().getProblems().isEmpty());
+        assertFalse(iterateDiagnostics.report().isSized());
+        assertEquals(100_000, iterateDiagnostics.report().getElements());
+    }
+
+    /*
+    Ordered vs unordered parallel streams
+
+    Streams from lists, arrays or Stream.iterate(...) are ORDERED. Parallel streams keep that order wherever the result
+    could depend on it: distinct() keeps the first of equal elements, limit(n) the first n elements and findFirst()
+    the first element. That needs buffering and coordination between the threads. unordered() drops the order and
+    lets the threads take any element they like. forEach(...) is unordered anyway - that's why the parallel stream in
+    C_05_Streams_Exercises.showThatParallelStreamRunsOnDifferentThreadsSOLUTION() prints the numbers mixed up.
+
+    The following measurements show what keeping the order costs. Results vary with the machine.
+     */
+    @Test
+    public void orderedVersusUnorderedParallelStreams() {
+        List<Integer> numbers = new SplittableRandom(42).ints(2_000_000, 0, 100_000).boxed()
+                .collect(Collectors.toList());
+
+        long orderedDistinct = measure("distinct, ordered", () -> numbers.parallelStream().distinct().count());
+        long unorderedDistinct = measure("distinct, unordered",
+                () -> numbers.parallelStream().unordered().distinct().count());
+        assertEquals(orderedDistinct, unorderedDistinct);
+
+        measure("limit, ordered", () -> numbers.parallelStream().filter(i -> i % 2 == 0).limit(500_000)
+                .mapToLong(i -> i).count());
+        measure("limit, unordered", () -> numbers.parallelStream().unordered().filter(i -> i % 2 == 0)
+                .limit(500_000).mapToLong(i -> i).count());
+
+        measure("findFirst", () -> numbers.parallelStream().filter(i -> i > 99_990).findFirst().get());
+        measure("findAny", () -> numbers.parallelStream().filter(i -> i > 99_990).findAny().get());
+
+        // StreamPipeline knows which terminal operations don't care about the order and drops it for them:
+        StreamPipeline<Integer, Integer> pipeline = StreamPipeline.<Integer>start().map(i -> i / 10).distinct();
+        long count = measure("StreamPipeline.count", () -> pipeline.count(numbers.parallelStream()));
+        assertEquals(numbers.stream().map(i -> i / 10).distinct().count(), count);
+        System.out.println(pipeline.explainUnordered());
+
+        // ... but only after the last limit(n), because that depends on the order:
+        StreamPipeline<Integer, Integer> limited = pipeline.limit(1000).distinct();
+        assertEquals(new HashSet<>(numbers.stream().map(i -> i / 10).distinct().limit(1000)
+                .collect(Collectors.toList())), limited.toSet(numbers.parallelStream()));
+        System.out.println(limited.explainUnordered());
+    }
+
+    private static <R> R measure(String name, Supplier<R> benchmark) {
+        // a few rounds for warming up, then the best of five
+        R result = null;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 8; i++) {
+            long start = System.nanoTime();
+            result = benchmark.get();
+            if (i >= 3) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        System.out.println(name + ": " + best / 1_000_000 + " ms");
+        return result;
+    }
 }
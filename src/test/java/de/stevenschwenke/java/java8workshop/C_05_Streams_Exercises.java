@@ -4,13 +4,19 @@ import org.junit.Test;
 
 import java.util.*;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BinaryOperator;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Exercises for chapter 4 and 5: Streams.
  */
@@ -66,6 +72,73 @@ public class C_05_Streams_Exercises {
         Stream.generate(Math::random).filter(o -> o > 0.5).limit(3).forEach((x) -> System.out.println(x));
     }
 
+    @Test
+    public void orderOfOperationsInStreamsOptimized() {
+
+        // Some changes of the order never change the result and can be done automatically. StreamPipeline records
+        // the operations first and optimizes them before running:
+        StreamPipeline<Integer, String> pipeline = StreamPipeline.<Integer>start()
+                .filterIndependent("expensive", i -> slowCheck(i))
+                .filterIndependent("cheap and picky", i -> i % 10 == 0)
+                .map(i -> i * 2)
+                .map(i -> "#" + i)
+                .sorted(Comparator.reverseOrder())
+                .limit(3);
+
+        List<String> result = pipeline.run(IntStream.range(0, 5000).boxed()).collect(Collectors.toList());
+        assertEquals(Arrays.asList("#9980", "#9960", "#9940"), result);
+
+        // The filters have been measured and the cheap one that throws away 90% of the elements now runs first:
+        System.out.println(pipeline.explain());
+    }
+
+    @Test
+    public void fusedFiltersKeepTheirOrder() {
+
+        // Filters can rely on the filters before them. Only filters marked as independent are reordered:
+        StreamPipeline<String, String> pipeline = StreamPipeline.<String>start()
+                .filter(s -> s != null)
+                .filter(s -> s.length() > 3);
+        List<String> elements = new ArrayList<>();
+        for (int i = 0; i < 2 * StreamPipeline.SAMPLE_SIZE; i++) {
+            elements.addAll(Arrays.asList("abcd", null, "xy", "hello"));
+        }
+
+        List<String> result = pipeline.run(elements.stream()).collect(Collectors.toList());
+        assertEquals(elements.stream().filter(s -> s != null).filter(s -> s.length() > 3)
+                .collect(Collectors.toList()), result);
+        assertEquals(Arrays.asList("abcd", "hello"), pipeline.run(Stream.of("abcd", null, "xy", "hello"))
+                .collect(Collectors.toList()));
+        System.out.println(pipeline.explain());
+    }
+
+    @Test
+    public void optimizedPipelinesStayLazy() {
+
+        // sorted().limit(n) is replaced by a bounded heap. Like every stream, it only runs with the terminal
+        // operation, keeps running in parallel and closes its source:
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicBoolean closed = new AtomicBoolean();
+        Stream<Integer> source = IntStream.range(0, 1000).boxed().parallel().peek(i -> consumed.incrementAndGet())
+                .onClose(() -> closed.set(true));
+        try (Stream<Integer> top = StreamPipeline.<Integer>start().sorted(Comparator.reverseOrder()).limit(3)
+                .run(source)) {
+            assertEquals(0, consumed.get());
+            assertTrue(top.isParallel());
+            assertEquals(Arrays.asList(999, 998, 997), top.collect(Collectors.toList()));
+            assertEquals(1000, consumed.get());
+        }
+        assertTrue(closed.get());
+    }
+
+    private boolean slowCheck(int i) {
+        double d = i;
+        for (int j = 0; j < 100; j++) {
+            d = Math.sqrt(d + j);
+        }
+        return d >= 0;
+    }
+
     @Test
     public void doingMathWithLambdasSOLUTION() {
 
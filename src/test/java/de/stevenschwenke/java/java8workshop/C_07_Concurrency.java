@@ -3,10 +3,18 @@ package de.stevenschwenke.java.java8workshop;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Java 8 brings a lot of support for concurrent programming. These are not main topic of this workshop and are just
@@ -202,6 +210,47 @@ public class C_07_Concurrency {
         executor.shutdown();
     }
 
+    /**
+     * CompletableFutures push their results when they are ready, streams pull their elements. {@link PushStream}
+     * connects both without a queue that grows and grows: the consumer tells how many elements it can take, and only
+     * that many are produced.
+     */
+    @Test
+    public void backPressureBetweenFuturesAndStreams() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        // 100 "remote calls", but never more than 4 at the same time:
+        Function<Integer, CompletableFuture<Integer>> remoteCall = i -> CompletableFuture.supplyAsync(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return i * i;
+        }, executor);
+
+        try (Stream<Integer> results = PushStream.fromStream(IntStream.rangeClosed(1, 100).boxed())
+                .mapAsync(remoteCall, 4)
+                .filter(i -> i % 2 == 0)
+                .toStream(16)) {
+            // The results arrive in any order, summing them up doesn't care.
+            assertEquals(171700, results.mapToInt(i -> i).sum());
+        }
+        System.out.println("Calls running at the same time: " + maxRunning.get());
+        assertTrue(maxRunning.get() <= 4);
+
+        // ... and back to a CompletableFuture:
+        CompletableFuture<List<String>> list = PushStream.fromIterable(Arrays.asList(1, 2, 3)).map(i -> "#" + i)
+                .toList();
+        assertEquals(Arrays.asList("#1", "#2", "#3"), list.get());
+
+        executor.shutdown();
+    }
+
     /*
     Other changes in JDK 1.8:
     - redesign class ForkJoinPool: had just one submit queue for external tasks, now has several. Much more
@@ -4,8 +4,15 @@ import de.stevenschwenke.java.java8workshop.Change;
 import de.stevenschwenke.java.java8workshop.JavaVersion;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 @JavaVersion("1.5")
 public class C_08_Annotations {
 
@@ -59,12 +66,50 @@ public class C_08_Annotations {
          */
     }
 
+    /**
+     * Annotations on the use of a type end up in the class files, even inside of methods. {@link JavaVersionScanner}
+     * reads them from there after compiling and writes an index that can be searched very fast.
+     */
+    @Test
+    public void findingTypeUseAnnotations() throws IOException, URISyntaxException {
+        JavaVersionIndex index = JavaVersionIndex.load();
+        if (index.size() == 0) {
+            // Maven writes the index after compiling the tests. Run from an IDE or with -Dexec.skip, there is none, so
+            // the test classes are scanned here.
+            Path testClasses = Paths.get(C_08_Annotations.class.getProtectionDomain().getCodeSource().getLocation()
+                    .toURI());
+            index = JavaVersionIndex.wrap(JavaVersionIndex.write(JavaVersionScanner.scan(testClasses)));
+        }
+
+        List<String> java8 = index.find("1.8");
+        java8.forEach(System.out::println);
+
+        assertTrue(java8.contains(C_08_Annotations.class.getName() + "#annotationExamples cast"));
+        assertTrue(java8.contains(C_08_Annotations.class.getName() + "#annotationExamples throws"));
+        assertTrue(index.find("1.5").contains(C_08_Annotations.class.getName() + "#doNothing"));
+    }
+
     @Change(date = "2015-03-15", reason="First version of this method")
     @Change(date = "2015-03-18", reason="small bug fix")
     public void repeatableAnnotations() {
 
     }
 
+    /**
+     * Annotations can be read while compiling with an annotation processor, see {@link ChangeProcessor}. It generates
+     * an index of all {@link Change}s, so no reflection is needed at runtime - which wouldn't even work here because
+     * {@link Change} is not retained at runtime.
+     */
+    @Test
+    public void readingAnnotationsAtCompileTime() {
+        List<ChangeHistory.Entry> changes = ChangeHistory.forMember(C_08_Annotations.class, "repeatableAnnotations");
+        changes.forEach(System.out::println);
+
+        assertEquals(2, changes.size());
+        assertEquals("2015-03-15", changes.get(0).getDate());
+        assertEquals("small bug fix", changes.get(1).getReason());
+    }
+
     // Repetition is a source of learning:
     // Remember: Callable is designed to be used with executor, not stand-alone.
     // Since Java 8, fluent API possible even with concurrent code.
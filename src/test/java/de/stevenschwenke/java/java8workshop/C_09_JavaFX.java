@@ -1,6 +1,8 @@
 package de.stevenschwenke.java.java8workshop;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -9,8 +11,12 @@ import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
 import javafx.concurrent.ScheduledService;
 import javafx.concurrent.Task;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.geometry.Bounds;
+import javafx.geometry.Rectangle2D;
 import javafx.print.*;
 import javafx.scene.Scene;
+import javafx.scene.SnapshotParameters;
 import javafx.scene.control.*;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
@@ -22,10 +28,27 @@ import javafx.util.Duration;
 import javafx.util.StringConverter;
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static de.stevenschwenke.java.java8workshop.C_09_JavaFX_Headless.daemonThread;
 import static javafx.beans.binding.Bindings.when;
 import static org.junit.Assert.assertEquals;
 
@@ -93,6 +116,53 @@ public class C_09_JavaFX extends Application {
         treeTableView.setShowRoot(true);
         root.getChildren().add(new VBox(createTextFlowLabel("TreeTableView"), treeTableView));
 
+        // Lazy TreeTableView
+
+        // A tree with a million nodes, but only the nodes that are looked at are created, 100 children at a time.
+        // Select "more ..." to load the next page in the background - for a database, that takes a while. The number
+        // of descendants is calculated in the background as well.
+        LazyTreeNode<String> lazyRootNode = new LazyTreeNode<>("Root", C_09_JavaFX_Headless.numberedTree(), 100);
+        LazyTreeItem lazyRoot = new LazyTreeItem(lazyRootNode);
+        lazyRoot.setExpanded(true);
+        ExecutorService loaderThread = Executors.newSingleThreadExecutor(daemonThread("tree-loader"));
+        ExecutorService aggregateThread = Executors.newSingleThreadExecutor(daemonThread("tree-aggregates"));
+        LazyTreeNode.Aggregation<String, Long> countNodes = new LazyTreeNode.Aggregation<String, Long>() {
+            @Override
+            public Long of(String value) {
+                return 1L;
+            }
+
+            @Override
+            public Long combine(Long a, Long b) {
+                return a + b;
+            }
+        };
+        TreeTableColumn<String, String> lazyColumn = new TreeTableColumn<>("Node");
+        lazyColumn.setPrefWidth(150);
+        lazyColumn.setCellValueFactory(p -> new ReadOnlyStringWrapper(p.getValue().getValue()));
+        TreeTableColumn<String, String> countColumn = new TreeTableColumn<>("Nodes");
+        countColumn.setPrefWidth(80);
+        countColumn.setCellValueFactory(p -> {
+            ReadOnlyStringWrapper count = new ReadOnlyStringWrapper("...");
+            if (p.getValue() instanceof LazyTreeItem) {
+                ((LazyTreeItem) p.getValue()).node.aggregate(countNodes, aggregateThread)
+                        .thenAccept(n -> Platform.runLater(() -> count.set(String.valueOf(n))));
+            } else {
+                count.set("");
+            }
+            return count;
+        });
+        TreeTableView<String> lazyTreeTableView = new TreeTableView<>(lazyRoot);
+        lazyTreeTableView.getColumns().add(lazyColumn);
+        lazyTreeTableView.getColumns().add(countColumn);
+        lazyTreeTableView.setPrefHeight(130);
+        lazyTreeTableView.getSelectionModel().selectedItemProperty().addListener((observable, oldItem, item) -> {
+            if (item instanceof MoreTreeItem) {
+                ((MoreTreeItem) item).loadMore(loaderThread);
+            }
+        });
+        root.getChildren().add(new VBox(createTextFlowLabel("Lazy TreeTableView"), lazyTreeTableView));
+
         // ListFiltering
 
         // New TransformationList is a wrapper around a normal list and has two implementations: FilteredList and
@@ -107,6 +177,27 @@ public class C_09_JavaFX extends Application {
 
         root.getChildren().add(listFilteringContainer);
 
+        // Incremental ListFiltering
+
+        // With a lot of elements, filtering on every keystroke on the FX thread makes typing sluggish. Here, the
+        // filtering runs 150 ms after the last keystroke in a background thread, uses an index and only the
+        // difference to the previous result is applied to the ListView. See IncrementalFilter.
+        List<String> manyItems = IntStream.range(0, 100_000).mapToObj(i -> "item " + i).collect(Collectors.toList());
+        IncrementalFilter<String> incrementalFilter = new IncrementalFilter<>(manyItems, s -> s);
+        ObservableList<String> shownItems = FXCollections.observableArrayList(manyItems);
+        ListView<String> largeListView = new ListView<>(shownItems);
+        largeListView.setPrefHeight(100);
+        TextField largeListFilterField = new TextField();
+        ScheduledExecutorService filterThread = Executors.newSingleThreadScheduledExecutor(daemonThread("list-filter"));
+        Debouncer debouncer = new Debouncer(filterThread, 150, TimeUnit.MILLISECONDS);
+        largeListFilterField.textProperty().addListener((observable, oldText, newText) -> debouncer.submit(() -> {
+            IncrementalFilter.Result<String> result = incrementalFilter.filter(newText);
+            // Platform.runLater keeps the order, so the differences are applied in the order they were calculated.
+            Platform.runLater(() -> result.applyTo(shownItems));
+        }));
+        root.getChildren().add(new VBox(createTextFlowLabel("Incremental ListFiltering"), largeListFilterField,
+                largeListView));
+
         // Task: updateValue
 
         Task<String> task = new Task<String>() {
@@ -132,6 +223,45 @@ public class C_09_JavaFX extends Application {
         VBox threadContainer = new VBox(createTextFlowLabel("Task.updateValue()"), button);
         root.getChildren().add(threadContainer);
 
+        // Many updates from a background thread: UpdateCoalescer
+
+        // Task.updateValue() only sends the latest value to the FX thread. Other properties and lists that are
+        // updated from a background thread need the same, otherwise every update is a Platform.runLater(...). This
+        // producer updates a label, a list and the statistics as fast as it can. The AnimationTimer applies what has
+        // arrived once per frame.
+        UpdateCoalescer coalescer = new UpdateCoalescer();
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                coalescer.flush();
+            }
+        }.start();
+        Label producedValue = new Label();
+        ObservableList<String> producedItems = FXCollections.observableArrayList();
+        ListView<String> producedView = new ListView<>(producedItems);
+        producedView.setPrefHeight(80);
+        Label coalescerStatistics = new Label();
+        Button startProducer = new Button("Start producer");
+        startProducer.setOnAction(eventHandler -> {
+            startProducer.setDisable(true);
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 500_000; i++) {
+                    coalescer.set(producedValue, producedValue::setText, "update " + i);
+                    if (i % 100 == 0) {
+                        coalescer.add(producedItems, "element " + i);
+                    }
+                    if (i % 1000 == 0) {
+                        coalescer.set(coalescerStatistics, coalescerStatistics::setText, coalescer.toString());
+                    }
+                }
+                coalescer.set(coalescerStatistics, coalescerStatistics::setText, coalescer.toString());
+            }, "producer");
+            producer.setDaemon(true);
+            producer.start();
+        });
+        root.getChildren().add(new VBox(createTextFlowLabel("UpdateCoalescer"), startProducer, producedValue,
+                producedView, coalescerStatistics));
+
         // new class: Scheduled Service
 
         ScheduledService<Void> service = new ScheduledService<Void>() {
@@ -154,6 +284,32 @@ public class C_09_JavaFX extends Application {
         startScheduledService.setOnAction(eventHandler -> service.start());
         root.getChildren().add(new VBox(createTextFlowLabel("ScheduledService"), startScheduledService));
 
+        // The ScheduledService above runs every 5 seconds, no matter how long the task takes or if it fails.
+        // AdaptiveScheduledTask waits longer after slow runs, when the machine is busy and after failures. This task
+        // is slow now and then and fails every fifth time.
+        ScheduledExecutorService adaptiveThread =
+                Executors.newSingleThreadScheduledExecutor(daemonThread("adaptive-task"));
+        AdaptiveScheduledTask adaptiveTask = new AdaptiveScheduledTask(adaptiveThread, () -> {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(10, 1500));
+            if (ThreadLocalRandom.current().nextInt(5) == 0) {
+                throw new IllegalStateException("Server not reachable");
+            }
+            return null;
+        });
+        adaptiveTask.setPeriod(1, TimeUnit.SECONDS);
+        adaptiveTask.setMaximumFailureCount(10);
+        Label adaptiveStatus = new Label();
+        Button startAdaptiveTask = new Button("Start adaptive task");
+        startAdaptiveTask.setOnAction(eventHandler -> {
+            startAdaptiveTask.setDisable(true);
+            adaptiveTask.start();
+            adaptiveThread.scheduleWithFixedDelay(
+                    () -> coalescer.set(adaptiveStatus, adaptiveStatus::setText, adaptiveTask.toString()),
+                    0, 500, TimeUnit.MILLISECONDS);
+        });
+        root.getChildren().add(new VBox(createTextFlowLabel("AdaptiveScheduledTask"), startAdaptiveTask,
+                adaptiveStatus));
+
         // New CSS theme Modena is new default theme!
         Button toggleThemes = new Button();
         SimpleBooleanProperty modena = new SimpleBooleanProperty(true);
@@ -188,6 +344,48 @@ public class C_09_JavaFX extends Application {
         });
         root.getChildren().add(new VBox(createTextFlowLabel("Print support"), print));
 
+        // Printing everything at once on the FX thread freezes the UI until it's done. TiledExport exports page by
+        // page in the background instead. The FX thread only takes snapshots of small tiles and handles events in
+        // between, encoding the pages as PNG happens in the background as well.
+        Button export = new Button("Export as PNG pages");
+        ProgressBar exportProgress = new ProgressBar(0);
+        ExecutorService exportThread = Executors.newSingleThreadExecutor(daemonThread("export"));
+        export.setOnAction(eventHandler -> {
+            export.setDisable(true);
+            Bounds bounds = root.getBoundsInParent();
+            TiledExport tiledExport = new TiledExport((int) Math.ceil(bounds.getWidth()),
+                    (int) Math.ceil(bounds.getHeight()), 794, 1123, 256);
+            TiledExport.TileSource snapshots = area -> {
+                CompletableFuture<BufferedImage> tile = new CompletableFuture<>();
+                Platform.runLater(() -> {
+                    try {
+                        SnapshotParameters parameters = new SnapshotParameters();
+                        parameters.setViewport(new Rectangle2D(bounds.getMinX() + area.x, bounds.getMinY() + area.y,
+                                area.width, area.height));
+                        tile.complete(SwingFXUtils.fromFXImage(root.snapshot(parameters, null), null));
+                    } catch (RuntimeException e) {
+                        // otherwise the export waits for this tile until it times out
+                        tile.completeExceptionally(e);
+                    }
+                });
+                return tile;
+            };
+            try {
+                Path directory = Files.createTempDirectory("export");
+                tiledExport.export(snapshots, TiledExport.pngFiles(directory), exportThread,
+                        (done, total) -> coalescer.set(exportProgress, exportProgress::setProgress,
+                                (double) done / total))
+                        .whenComplete((pages, failure) -> Platform.runLater(() -> {
+                            export.setDisable(false);
+                            export.setText(failure == null ? pages + " pages in " + directory
+                                    : "Export failed: " + failure.getMessage());
+                        }));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        root.getChildren().add(new VBox(createTextFlowLabel("Tiled export"), export, exportProgress));
+
         // Dialogs
         Button dialogs = new Button("Dialogs");
         dialogs.setOnAction(eventHandler -> {
@@ -208,12 +406,95 @@ public class C_09_JavaFX extends Application {
 
         // Setup GUI
 
-        Scene scene = new Scene(root, 300, 680);
+        // The demos don't fit on the screen anymore.
+        Scene scene = new Scene(new ScrollPane(root), 320, 860);
         primaryStage.setTitle("JavaFX in Java 8");
         primaryStage.setScene(scene);
         primaryStage.show();
     }
 
+    /**
+     * TreeItem that creates its children when they are needed, see {@link LazyTreeNode}. The TreeItems of collapsed
+     * nodes are thrown away, the LazyTreeNode keeps the loaded values as long as there's enough memory.
+     */
+    private static class LazyTreeItem extends TreeItem<String> {
+        private final LazyTreeNode<String> node;
+        private boolean childrenCreated;
+
+        LazyTreeItem(LazyTreeNode<String> node) {
+            super(node.getValue());
+            this.node = node;
+            expandedProperty().addListener((observable, wasExpanded, expanded) -> {
+                node.setExpanded(expanded);
+                if (!expanded) {
+                    childrenCreated = false;
+                    super.getChildren().clear();
+                }
+            });
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return node.isLeaf();
+        }
+
+        @Override
+        public ObservableList<TreeItem<String>> getChildren() {
+            if (!childrenCreated) {
+                childrenCreated = true;
+                super.getChildren().setAll(createItems(node.getLoadedChildren()));
+                if (node.hasMoreChildren()) {
+                    super.getChildren().add(new MoreTreeItem(this));
+                }
+            }
+            return super.getChildren();
+        }
+
+        private static List<TreeItem<String>> createItems(List<LazyTreeNode<String>> nodes) {
+            return nodes.stream().<TreeItem<String>>map(LazyTreeItem::new).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Placeholder at the end of a page of children.
+     */
+    private static class MoreTreeItem extends TreeItem<String> {
+        private final LazyTreeItem parent;
+        private boolean loading;
+
+        MoreTreeItem(LazyTreeItem parent) {
+            super("more ...");
+            this.parent = parent;
+        }
+
+        /**
+         * Loads the next page with the loader and shows it on the FX thread.
+         */
+        void loadMore(Executor loader) {
+            if (loading) {
+                return;
+            }
+            loading = true;
+            setValue("loading ...");
+            CompletableFuture.supplyAsync(() -> {
+                List<LazyTreeNode<String>> page = parent.node.loadNextPage();
+                return new AbstractMap.SimpleImmutableEntry<>(page, parent.node.hasMoreChildren());
+            }, loader).whenComplete((loaded, failure) -> Platform.runLater(() -> {
+                if (failure != null) {
+                    loading = false;
+                    setValue("more ... (loading failed: " + failure.getMessage() + ")");
+                    return;
+                }
+                List<TreeItem<String>> items = new ArrayList<>(LazyTreeItem.createItems(loaded.getKey()));
+                if (loaded.getValue()) {
+                    items.add(new MoreTreeItem(parent));
+                }
+                parent.getChildren().remove(this);
+                parent.getChildren().addAll(items);
+            }));
+        }
+    }
+
     /**
      * Creates a nice-looking label with the new {@link TextFlow} component. It can also display images!
      *
@@ -293,6 +574,11 @@ public class C_09_JavaFX extends Application {
         filteredList.add("EXCEPTION!");
     }
 
+    /*
+        The classes behind the demos above don't need JavaFX. They are tested and benchmarked without a screen in
+        C_09_JavaFX_Headless.
+     */
+
     /*
         I cannot be sure that everyone of the attendees is keen in writing JavaFX code. Hence, no exercises.
      */
@@ -0,0 +1,478 @@
+package de.stevenschwenke.java.java8workshop;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * C_09_JavaFX is an Application and needs a screen. The logic behind its demos - filtering, the lazy tree, updates
+ * from background threads, scheduled tasks, the tiled export - is in classes that don't depend on JavaFX:
+ * IncrementalFilter, LazyTreeNode, UpdateCoalescer, AdaptiveScheduledTask and TiledExport. C_09_JavaFX only wires
+ * them to the controls. Where they need the FX thread, it's handed in as an Executor (Platform::runLater) or they
+ * are called once per frame from an AnimationTimer. This chapter tests and benchmarks them without a screen, for
+ * example on a build server without display or GPU. The FX application thread is replaced by
+ * {@link HeadlessUiThread}.
+ */
+public class C_09_JavaFX_Headless {
+
+    @Test
+    public void headlessUiThreadBehavesLikeTheFxThread() throws Exception {
+        try (HeadlessUiThread ui = new HeadlessUiThread(5, TimeUnit.MILLISECONDS)) {
+            // Runnables are run one after the other, in the order they were given, on the UI thread:
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                int n = i;
+                ui.execute(() -> order.add(n));
+            }
+            AtomicBoolean onUiThread = new AtomicBoolean();
+            ui.runAndWait(() -> onUiThread.set(ui.isUiThread()));
+            assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), order);
+            assertTrue(onUiThread.get());
+            assertFalse(ui.isUiThread());
+
+            // Nested runAndWait(...) runs right away instead of waiting for itself, exceptions reach the caller:
+            AtomicBoolean nested = new AtomicBoolean();
+            ui.runAndWait(() -> {
+                try {
+                    ui.runAndWait(() -> nested.set(true));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(nested.get());
+            try {
+                ui.runAndWait(() -> {
+                    throw new IllegalStateException("broken");
+                });
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("broken", e.getMessage());
+            }
+
+            // Pulses come once per frame, like the calls of an AnimationTimer:
+            CountDownLatch pulses = new CountDownLatch(3);
+            ui.addPulseListener(pulses::countDown);
+            assertTrue(pulses.await(1, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * The model behind "Incremental ListFiltering" in C_09_JavaFX.
+     */
+    @Test
+    public void incrementalFilteringOfLargeLists() {
+        List<String> items = IntStream.range(0, 1_000_000).mapToObj(i -> "item " + i).collect(Collectors.toList());
+        IncrementalFilter<String> filter = new IncrementalFilter<>(items, s -> s);
+        List<String> shown = new ArrayList<>(items);
+
+        // Typing "4", "42", "421": every query narrows the result of the one before.
+        for (String query : Arrays.asList("4", "42", "421")) {
+            IncrementalFilter.Result<String> result = filter.filter(query);
+            System.out.println(result);
+            result.applyTo(shown);
+        }
+        assertEquals(items.stream().filter(s -> s.contains("421")).collect(Collectors.toList()), shown);
+
+        // A new query of three or more characters uses the index and only tests a few candidates.
+        IncrementalFilter.Result<String> result = filter.filter("99999");
+        System.out.println(result);
+        result.applyTo(shown);
+        assertEquals(Arrays.asList("item 99999", "item 199999", "item 299999", "item 399999", "item 499999",
+                "item 599999", "item 699999", "item 799999", "item 899999", "item 999990", "item 999991",
+                "item 999992", "item 999993", "item 999994", "item 999995", "item 999996", "item 999997",
+                "item 999998", "item 999999"), shown);
+    }
+
+    @Test
+    public void lazyTreeLoadsOnlyWhatIsNeeded() throws Exception {
+        LazyTreeNode<String> root = new LazyTreeNode<>("Root", numberedTree(), 30);
+        root.setExpanded(true);
+
+        // The first page of children is loaded when they are needed, then one page after the other:
+        assertEquals(30, root.getLoadedChildren().size());
+        assertEquals("Root.30", root.loadNextPage().get(0).getValue());
+        assertEquals(60, root.getLoadedChildren().size());
+
+        LazyTreeNode<String> child = root.getLoadedChildren().get(4);
+        child.setExpanded(true);
+        assertEquals("Root.4.0", child.getLoadedChildren().get(0).getValue());
+        assertEquals(1 + 60 + 30, root.getLoadedNodeCount());
+
+        // Collapsed subtrees are thrown away under memory pressure - or when asked to:
+        child.setExpanded(false);
+        root.evictCollapsed();
+        assertEquals(1 + 60, root.getLoadedNodeCount());
+
+        // Looking at the children of a collapsed node doesn't keep them in memory either:
+        assertTrue(child.hasMoreChildren());
+        assertEquals(30, child.getLoadedChildren().size());
+        root.evictCollapsed();
+        assertEquals(1 + 60, root.getLoadedNodeCount());
+
+        // The number of nodes of the whole tree is counted without loading them:
+        LazyTreeNode.Aggregation<String, Long> countNodes = new LazyTreeNode.Aggregation<String, Long>() {
+            @Override
+            public Long of(String value) {
+                return 1L;
+            }
+
+            @Override
+            public Long combine(Long a, Long b) {
+                return a + b;
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor(daemonThread("tree-aggregates"));
+        assertEquals(Long.valueOf(1 + 100 + 100 * 100 + 100 * 100 * 100),
+                root.aggregate(countNodes, executor).get());
+        assertEquals(1 + 60, root.getLoadedNodeCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void coalescingUpdatesForTheUiThread() {
+        // The UI thread calls flush() once per frame. Here, the test does that.
+        UpdateCoalescer coalescer = new UpdateCoalescer();
+        AtomicReference<String> label = new AtomicReference<>();
+        List<Integer> items = new ArrayList<Integer>() {
+            int addAllCalls;
+
+            @Override
+            public boolean addAll(Collection<? extends Integer> c) {
+                assertEquals("one change event for all elements", 0, addAllCalls++);
+                return super.addAll(c);
+            }
+        };
+
+        for (int i = 0; i < 10_000; i++) {
+            coalescer.set(label, label::set, "update " + i);
+            coalescer.add(items, i);
+        }
+
+        // 20.000 updates, nothing applied until the next frame, then all of them in one flush:
+        assertNull(label.get());
+        coalescer.flush();
+        assertEquals("update 9999", label.get());
+        assertEquals(10_000, items.size());
+        assertEquals(9_999, coalescer.getCoalesced());
+        assertEquals(9_999, coalescer.getBatched());
+        assertEquals(1, coalescer.getFlushes());
+        System.out.println(coalescer);
+
+        // A frame without updates doesn't count, the next update comes with the next frame:
+        coalescer.flush();
+        assertEquals(1, coalescer.getFlushes());
+        coalescer.set(label, label::set, "last");
+        assertEquals("update 9999", label.get());
+        coalescer.flush();
+        assertEquals("last", label.get());
+        assertEquals(2, coalescer.getFlushes());
+    }
+
+    @Test
+    public void adaptiveSchedulingBacksOffAfterFailures() throws Exception {
+        // Records the delays and runs everything right away, so the test doesn't have to wait.
+        List<Long> delays = Collections.synchronizedList(new ArrayList<>());
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1) {
+            @Override
+            public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+                delays.add(unit.toMillis(delay));
+                return super.schedule(command, 0, unit);
+            }
+        };
+        AtomicInteger runs = new AtomicInteger();
+        AtomicReference<Double> load = new AtomicReference<>(0.0);
+        CountDownLatch sevenRuns = new CountDownLatch(1);
+        AdaptiveScheduledTask task = new AdaptiveScheduledTask(executor, () -> {
+            int run = runs.incrementAndGet();
+            if (run == 6) {
+                load.set(3.0);
+            }
+            if (run == 7) {
+                sevenRuns.countDown();
+            }
+            if (run >= 2 && run <= 4) {
+                throw new IllegalStateException("failure " + run);
+            }
+            return null;
+        });
+        task.setPeriod(100, TimeUnit.MILLISECONDS);
+        task.setMaximumBackoff(500, TimeUnit.MILLISECONDS);
+        task.setJitter(0);
+        task.setLoad(load::get);
+        task.start();
+        sevenRuns.await(10, TimeUnit.SECONDS);
+        task.cancel();
+
+        // start, success, 3 failures with exponential backoff up to the maximum, success, busy machine:
+        assertEquals(Arrays.asList(0L, 100L, 200L, 400L, 500L, 100L, 300L), new ArrayList<>(delays.subList(0, 7)));
+        assertEquals("failure 4", task.getLastFailure().getMessage());
+
+        // Too many failures in a row stop the task:
+        AdaptiveScheduledTask failing = new AdaptiveScheduledTask(executor, () -> {
+            throw new IllegalStateException("always");
+        });
+        failing.setPeriod(1, TimeUnit.MILLISECONDS);
+        failing.setMaximumFailureCount(3);
+        failing.start();
+        long end = System.currentTimeMillis() + 10_000;
+        while (failing.isRunning() && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertFalse(failing.isRunning());
+        assertEquals(3, failing.getFailures());
+
+        // Errors are failures as well and don't stop the task:
+        AtomicInteger errorRuns = new AtomicInteger();
+        AdaptiveScheduledTask throwingErrors = new AdaptiveScheduledTask(executor, () -> {
+            if (errorRuns.incrementAndGet() <= 2) {
+                throw new AssertionError("error " + errorRuns.get());
+            }
+        });
+        throwingErrors.setPeriod(1, TimeUnit.MILLISECONDS);
+        throwingErrors.start();
+        end = System.currentTimeMillis() + 10_000;
+        while (throwingErrors.getRuns() < 5 && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, throwingErrors.getFailures());
+        assertTrue(throwingErrors.isRunning());
+        assertEquals("error 2", throwingErrors.getLastFailure().getMessage());
+
+        // When the executor doesn't take the next run, the task isn't running anymore:
+        executor.shutdown();
+        end = System.currentTimeMillis() + 10_000;
+        while (throwingErrors.isRunning() && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        assertFalse(throwingErrors.isRunning());
+    }
+
+
+    /**
+     * The model behind "Tiled export" in C_09_JavaFX. The tiles are cut out of an image on the UI thread, like the
+     * snapshots in JavaFX.
+     */
+    @Test
+    public void exportingLargeContentInTiles() throws Exception {
+        BufferedImage content = new BufferedImage(1000, 5000, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < content.getHeight(); y++) {
+            for (int x = 0; x < content.getWidth(); x++) {
+                content.setRGB(x, y, (x * 7 + y * 13) & 0xFFFFFF);
+            }
+        }
+        // Page as wide as the content, so nothing is scaled and every pixel can be compared.
+        TiledExport export = new TiledExport(1000, 5000, 1000, 1414, 256);
+        List<BufferedImage> pages = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger lastProgress = new AtomicInteger();
+        AtomicBoolean tilesOnUiThread = new AtomicBoolean(true);
+        ExecutorService worker = Executors.newSingleThreadExecutor(daemonThread("export"));
+        try (HeadlessUiThread ui = new HeadlessUiThread()) {
+            TiledExport.TileSource source = area -> {
+                CompletableFuture<BufferedImage> tile = new CompletableFuture<>();
+                ui.execute(() -> {
+                    tilesOnUiThread.compareAndSet(true, ui.isUiThread());
+                    BufferedImage copy = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_RGB);
+                    copy.getGraphics().drawImage(content.getSubimage(area.x, area.y, area.width, area.height), 0, 0,
+                            null);
+                    tile.complete(copy);
+                });
+                return tile;
+            };
+            int pageCount = export.export(source, (index, page) -> pages.add(page), worker,
+                    (done, total) -> lastProgress.set(done * 100 / total)).get(30, TimeUnit.SECONDS);
+
+            assertEquals(4, pageCount);
+            assertEquals(100, lastProgress.get());
+            assertTrue(tilesOnUiThread.get());
+            System.out.println(ui);
+        }
+        for (int y = 0; y < 5000; y += 7) {
+            for (int x = 0; x < 1000; x += 11) {
+                assertEquals(content.getRGB(x, y), pages.get(y / 1414).getRGB(x, y % 1414));
+            }
+        }
+        // The rest of the last page is white:
+        assertEquals(0xFFFFFFFF, pages.get(3).getRGB(500, 1413));
+
+        // Writing PNG files happens on the worker, too:
+        Path directory = Files.createTempDirectory("export");
+        new TiledExport(1000, 5000, 500, 707, 300).export(
+                area -> CompletableFuture.completedFuture(content.getSubimage(area.x, area.y, area.width, area.height)),
+                TiledExport.pngFiles(directory), worker, (done, total) -> {
+                }).get(30, TimeUnit.SECONDS);
+        BufferedImage firstPage = ImageIO.read(directory.resolve("page-1.png").toFile());
+        assertEquals(500, firstPage.getWidth());
+        assertEquals(707, firstPage.getHeight());
+        assertTrue(Files.exists(directory.resolve("page-4.png")));
+
+        // A tile that fails or never comes fails the export instead of blocking the worker forever:
+        CompletableFuture<Integer> failed = new TiledExport(1000, 5000, 500, 707, 300).export(area -> {
+            CompletableFuture<BufferedImage> tile = new CompletableFuture<>();
+            tile.completeExceptionally(new IllegalStateException("snapshot failed"));
+            return tile;
+        }, (index, page) -> fail("no page expected"), worker, (done, total) -> {
+        });
+        try {
+            failed.get(30, TimeUnit.SECONDS);
+            fail("export should have failed");
+        } catch (ExecutionException e) {
+            assertEquals("snapshot failed", e.getCause().getMessage());
+        }
+        TiledExport hanging = new TiledExport(1000, 5000, 500, 707, 300);
+        hanging.setTileTimeout(50, TimeUnit.MILLISECONDS);
+        try {
+            hanging.export(area -> new CompletableFuture<>(), (index, page) -> fail("no page expected"), worker,
+                    (done, total) -> {
+                    }).get(30, TimeUnit.SECONDS);
+            fail("export should have timed out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        worker.shutdown();
+    }
+
+    /*
+        Benchmarks. They measure what happens before rendering, so the numbers don't depend on a graphics card.
+     */
+
+    /**
+     * A FilteredList tests its predicate against every element whenever the predicate changes, like the full scan
+     * here. IncrementalFilter narrows the previous result or uses its index.
+     */
+    @Test
+    public void benchmarkFilterLatency() {
+        List<String> items = IntStream.range(0, 1_000_000).mapToObj(i -> "item " + i).collect(Collectors.toList());
+        long start = System.nanoTime();
+        IncrementalFilter<String> filter = new IncrementalFilter<>(items, s -> s);
+        System.out.printf("Index for %d items built in %d ms%n", items.size(), (System.nanoTime() - start) / 1_000_000);
+
+        for (String query : Arrays.asList("1", "12", "123", "1234", "12345", "9", "99", "999", "88888")) {
+            start = System.nanoTime();
+            List<String> scanned = items.stream().filter(s -> s.contains(query)).collect(Collectors.toList());
+            long scanNanos = System.nanoTime() - start;
+            IncrementalFilter.Result<String> result = filter.filter(query);
+            assertEquals(scanned, result.getMatches());
+            System.out.printf("full scan %6.1f ms | %s%n", scanNanos / 1e6, result);
+        }
+    }
+
+    /**
+     * A producer updates a value a million times and adds 10.000 elements to a list. Once with one Runnable per
+     * update for the UI thread, like calling Platform.runLater(...) for every update, and once with an
+     * {@link UpdateCoalescer}.
+     */
+    @Test
+    public void benchmarkUpdateThroughput() throws Exception {
+        int updates = 1_000_000;
+
+        try (HeadlessUiThread ui = new HeadlessUiThread()) {
+            AtomicReference<String> value = new AtomicReference<>();
+            List<Integer> items = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                String update = "update " + i;
+                ui.execute(() -> value.set(update));
+                if (i % 100 == 0) {
+                    int element = i;
+                    ui.execute(() -> items.add(element));
+                }
+            }
+            long produced = System.nanoTime() - start;
+            ui.waitForIdle();
+            long applied = System.nanoTime() - start;
+            assertEquals("update " + (updates - 1), value.get());
+            assertEquals(updates / 100, items.size());
+            System.out.printf("one Runnable per update: produced in %d ms, applied after %d ms, %s%n",
+                    produced / 1_000_000, applied / 1_000_000, ui);
+        }
+
+        try (HeadlessUiThread ui = new HeadlessUiThread()) {
+            UpdateCoalescer coalescer = new UpdateCoalescer();
+            ui.addPulseListener(coalescer::flush);
+            AtomicReference<String> value = new AtomicReference<>();
+            List<Integer> items = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                coalescer.set(value, value::set, "update " + i);
+                if (i % 100 == 0) {
+                    coalescer.add(items, i);
+                }
+            }
+            long produced = System.nanoTime() - start;
+            // The last updates are applied by the next pulse that starts after them.
+            long pulses = ui.getPulses();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (ui.getPulses() < pulses + 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            ui.waitForIdle();
+            long applied = System.nanoTime() - start;
+            assertEquals("update " + (updates - 1), value.get());
+            assertEquals(updates / 100, items.size());
+            assertTrue("at most one flush per frame", coalescer.getFlushes() <= ui.getPulses());
+            System.out.printf("UpdateCoalescer:         produced in %d ms, applied after %d ms, %s (%s)%n",
+                    produced / 1_000_000, applied / 1_000_000, ui, coalescer);
+        }
+    }
+
+    /**
+     * Background threads of the demos are daemon threads, so they don't keep the JVM running when the window is closed
+     * or a test fails before shutting its executor down. Also used by C_09_JavaFX.
+     */
+    static ThreadFactory daemonThread(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Tree where every node below "Root" is named after its position, for example "Root.4.2". Three levels with 100
+     * children each, so a million leaves - none of them stored anywhere. Also
+     * used by the "Lazy TreeTableView" in C_09_JavaFX.
+     */
+    static LazyTreeNode.ChildProvider<String> numberedTree() {
+        return new LazyTreeNode.ChildProvider<String>() {
+            @Override
+            public boolean isLeaf(String value) {
+                return value.chars().filter(c -> c == '.').count() == 3;
+            }
+
+            @Override
+            public List<String> children(String parent, int offset, int limit) {
+                return IntStream.range(offset, Math.min(100, offset + limit)).mapToObj(i -> parent + "." + i)
+                        .collect(Collectors.toList());
+            }
+        };
+    }
+}
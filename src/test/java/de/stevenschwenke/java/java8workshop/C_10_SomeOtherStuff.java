@@ -1,19 +1,25 @@
 package de.stevenschwenke.java.java8workshop;
 
 import de.stevenschwenke.java.java8workshop.InterfaceWithStaticMethod;
+import org.junit.Assume;
 import org.junit.Test;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static junit.framework.Assert.fail;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * This class is for small features that didn't fit in the other test classes.
@@ -85,6 +91,94 @@ public class C_10_SomeOtherStuff {
         // There are more features, like compiling code to bytecode. Not looked into here. :)
     }
 
+    /**
+     * Creating the engine and parsing the script take much longer than running it. If the same scripts run over and
+     * over again, {@link CachedScriptEngine} keeps one engine per thread and compiles every script only once.
+     */
+    @Test
+    public void javaScriptWithCachedEngines() throws Exception {
+        // Nashorn is gone since Java 15:
+        Assume.assumeNotNull(new ScriptEngineManager().getEngineByName("nashorn"));
+        CachedScriptEngine nashorn = new CachedScriptEngine("nashorn");
+
+        assertEquals(42, ((Number) nashorn.eval("x * 2", Collections.singletonMap("x", 21))).intValue());
+
+        // one script, many bindings:
+        List<Map<String, Integer>> bindings = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            bindings.add(Collections.singletonMap("x", i));
+        }
+        long start = System.currentTimeMillis();
+        List<Object> results = nashorn.evalAll("x > 500 ? 'big' : 'small'", bindings);
+        System.out.println("1000 evaluations with cached engine: " + (System.currentTimeMillis() - start) + " ms");
+        assertEquals("big", results.get(999));
+
+        // Compare with the naive way. That's just 10 evaluations, not 1000!
+        start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            ScriptEngine engine = new ScriptEngineManager().getEngineByName("nashorn");
+            engine.put("x", i);
+            engine.eval("x > 500 ? 'big' : 'small'");
+        }
+        System.out.println("10 evaluations with new engines: " + (System.currentTimeMillis() - start) + " ms");
+
+        // A function defined once and called many times:
+        List<Object> sums = nashorn.invokeAll("function sum(a, b) { return a + b; }", "sum",
+                Arrays.asList(new Object[]{1, 2}, new Object[]{20, 22}));
+        assertEquals(42, ((Number) sums.get(1)).intValue());
+
+        // Every script has its own global scope. Functions and variables of one script don't change another one:
+        List<Object[]> noArguments = Collections.singletonList(new Object[0]);
+        String ruleA = "var limit = 20; function f() { return limit; }";
+        String ruleB = "function f() { return 3; }";
+        assertEquals(20, ((Number) nashorn.invokeAll(ruleA, "f", noArguments).get(0)).intValue());
+        assertEquals(3, ((Number) nashorn.invokeAll(ruleB, "f", noArguments).get(0)).intValue());
+        assertEquals(20, ((Number) nashorn.invokeAll(ruleA, "f", noArguments).get(0)).intValue());
+        nashorn.eval("limit", Collections.singletonMap("limit", 100));
+        assertEquals(20, ((Number) nashorn.invokeAll(ruleA, "f", noArguments).get(0)).intValue());
+        assertEquals("undefined", nashorn.eval("typeof limit"));
+
+        // A variable with the name of a global of the script is only there during the evaluation:
+        String ruleC = "var max = 10; function f() { return max; }";
+        assertEquals(10, ((Number) nashorn.invokeAll(ruleC, "f", noArguments).get(0)).intValue());
+        nashorn.eval(ruleC, Collections.singletonMap("max", 100));
+        assertEquals(10, ((Number) nashorn.invokeAll(ruleC, "f", noArguments).get(0)).intValue());
+    }
+
+    /**
+     * Nashorn is gone since Java 15. Simple rules don't need a whole JavaScript engine anyway: {@link ExpressionBackend}
+     * compiles them with a small built-in compiler and only hands off to a script engine for everything else.
+     */
+    @Test
+    public void expressionsWithoutJavaScriptEngine() {
+        RuleExpression rule = new ExpressionCompiler().compile("price * amount > 100 && !(customer == 'blocked')");
+
+        Map<String, Object> order = new HashMap<>();
+        order.put("price", 12.5);
+        order.put("amount", 10);
+        order.put("customer", "steven");
+        assertEquals(true, rule.evaluate(order));
+
+        order.put("customer", "blocked");
+        assertEquals(false, rule.evaluate(order));
+
+        // Same results on every JDK. If there's a JavaScript engine, it's only asked for what the compiler can't do:
+        ExpressionBackend backend = ExpressionBackend.defaultBackend();
+        assertEquals(6.0, backend.compile("x > 1 ? x * 3 : 0").evaluate(Collections.singletonMap("x", 2)));
+
+        // Compiling once and evaluating often is fast:
+        RuleExpression compiled = backend.compile("x % 2 == 0");
+        long start = System.currentTimeMillis();
+        int even = 0;
+        for (int i = 0; i < 1_000_000; i++) {
+            if ((Boolean) compiled.evaluate(Collections.singletonMap("x", i))) {
+                even++;
+            }
+        }
+        System.out.println("1.000.000 evaluations: " + (System.currentTimeMillis() - start) + " ms");
+        assertEquals(500_000, even);
+    }
+
     @Test
     public void optional() {
 
@@ -134,6 +228,53 @@ public class C_10_SomeOtherStuff {
         Stream.of(-2,-1,0,1,2).reduce((a,b)->a+b).ifPresent(s -> System.out.println(s));
     }
 
+    /**
+     * Optional is nice, but it's an object. Reducing a Stream&lt;Integer&gt; also boxes every single number. In hot
+     * loops, {@link LongReduction} does the same with primitives and a flag for "empty".
+     */
+    @Test
+    public void reducingWithoutOptional() {
+        LongReduction sum = LongReduction.sum();
+        IntStream.of(-2, -1, 0, 1, 2).forEach(sum);
+        assertEquals(0, sum.getAsLong());
+
+        // empty is not the same as 0:
+        sum.reset();
+        IntStream.empty().forEach(sum);
+        assertTrue(sum.isEmpty());
+        assertEquals(-1, sum.orElse(-1));
+
+        // min and max, reusing the same instances over and over again:
+        LongReduction min = LongReduction.min();
+        LongReduction max = LongReduction.max();
+        int[] numbers = new int[1000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i - 500;
+        }
+        long start = System.currentTimeMillis();
+        for (int round = 0; round < 10_000; round++) {
+            min.reset().acceptAll(numbers);
+            max.reset().acceptAll(numbers);
+        }
+        System.out.println("LongReduction: " + (System.currentTimeMillis() - start) + " ms");
+        assertEquals(-500, min.getAsLong());
+        assertEquals(499, max.getAsLong());
+
+        // the same with boxed streams and Optional:
+        start = System.currentTimeMillis();
+        Optional<Integer> boxedMax = Optional.empty();
+        for (int round = 0; round < 10_000; round++) {
+            boxedMax = Arrays.stream(numbers).boxed().reduce(Integer::max);
+        }
+        System.out.println("Stream<Integer> + Optional: " + (System.currentTimeMillis() - start) + " ms");
+        assertEquals(499, boxedMax.get().intValue());
+
+        // works with parallel streams, too:
+        LongReduction parallelSum = IntStream.rangeClosed(1, 100).parallel()
+                .collect(LongReduction::sum, LongReduction::accept, LongReduction::combine);
+        assertEquals(5050, parallelSum.getAsLong());
+    }
+
 
     // Repetition is a source of learning:
     // There's a new class in Java 8 which allows filtering in lists. What's the name of this class?
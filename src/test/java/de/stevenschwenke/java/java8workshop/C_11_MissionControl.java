@@ -1,5 +1,33 @@
 package de.stevenschwenke.java.java8workshop;
 
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import javax.script.ScriptEngineManager;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 /**
  * MissionControl is the new tool for monitoring Java applications.
  */
@@ -39,5 +67,234 @@ public class C_11_MissionControl {
 
         1. Install experimental plugin JOverflow via Help -> Install New Software -> Heap Analysis -> JOverflow Heap Analyzer
         2. Right Click on Application -> Dump Heap
+
+        OWN EVENTS
+        ===========
+
+        Hot methods show where the CPU time goes, but not which stream or which task was slow. Applications can record
+        their own events, see FlightEvents. In Mission Control, they are listed under "Java 8 Workshop" in the
+        Event Browser, next to garbage collections and locks. (Since OpenJDK 8u262, flight recordings don't need
+        -XX:+UnlockCommercialFeatures anymore.)
+
+        The examples below need the Flight Recorder API jdk.jfr of Java 11 or OpenJDK 8u262. A build on Java 8 leaves
+        them out, see the profile in pom.xml.
+
+        CONTINUOUS RECORDING
+        =====================
+
+        Production machines usually can't be reached with Mission Control. FlightRecordingController records all the
+        time, keeps only the last minutes and writes them to a file when latencies get high, a garbage collection
+        takes too long or threads are deadlocked. The file can be opened in Mission Control later.
+
+        ALLOCATION PROFILING
+        =====================
+
+        Memory -> Heap Histogram and JOverflow need Mission Control and a connection to the JVM. AllocationSampler
+        records where the application allocates, with the allocation events of the Flight Recorder, and prints the top
+        allocation sites. HeapFootprint finds duplicate strings and boxed primitives in a data structure - the
+        overhead of a Stream<Integer> or of map(...) to Strings, see C_04_Streams.
      */
+
+    @Test
+    public void recordingOwnEvents() throws Exception {
+        boolean nashorn = new ScriptEngineManager().getEngineByName("nashorn") != null;
+        Path file = Files.createTempFile("workshop", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(JfrEvents.StreamPipelineEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(JfrEvents.TaskEvent.class).withThreshold(Duration.ZERO);
+            recording.enable(JfrEvents.ScriptEvaluationEvent.class).withThreshold(Duration.ZERO);
+            recording.start();
+
+            List<Integer> numbers = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+            StreamPipeline.<Integer>start().filter(i -> i % 3 == 0).count(numbers.parallelStream());
+
+            ExternalSort<String> sort = new ExternalSort<>(Comparator.naturalOrder(), ExternalSort.Codec.strings(),
+                    1000);
+            try (Stream<String> sorted = sort.sort(IntStream.range(0, 5000).mapToObj(i -> "element " + (5000 - i)))) {
+                assertEquals("element 1", sorted.findFirst().get());
+            }
+
+            // Nashorn is gone since Java 15:
+            if (nashorn) {
+                new CachedScriptEngine("nashorn").eval("x * 2", Collections.singletonMap("x", 21));
+            }
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Map<String, Long> eventsPerType = events.stream()
+                .map(event -> event.getEventType().getName())
+                .filter(name -> name.startsWith("de.stevenschwenke"))
+                .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+        System.out.println(eventsPerType);
+        events.stream().filter(event -> event.getEventType().getName().endsWith("StreamPipeline"))
+                .forEach(System.out::println);
+
+        assertEquals(Long.valueOf(1), eventsPerType.get("de.stevenschwenke.java8workshop.StreamPipeline"));
+        assertEquals(Long.valueOf(5), eventsPerType.get("de.stevenschwenke.java8workshop.Task"));
+        assertEquals(nashorn ? Long.valueOf(1) : null,
+                eventsPerType.get("de.stevenschwenke.java8workshop.ScriptEvaluation"));
+        assertTrue(events.stream().filter(event -> event.getEventType().getName().endsWith(".Task"))
+                .allMatch(event -> event.getString("task").equals("sort and write run")));
+        RecordedEvent pipeline = events.stream()
+                .filter(event -> event.getEventType().getName().endsWith("StreamPipeline")).findFirst().get();
+        assertEquals(100_000, pipeline.getLong("sourceSize"));
+        assertTrue(pipeline.getBoolean("parallel"));
+        Files.delete(file);
+    }
+
+    @Test
+    public void dumpingTheLastMinutesWhenSomethingGoesWrong() throws Exception {
+        Path directory = Files.createTempDirectory("recordings");
+        try (FlightRecordingController controller = new FlightRecordingController(directory, Duration.ofMinutes(2))) {
+            controller.setCheckInterval(Duration.ofMillis(50));
+            controller.setCooldown(Duration.ZERO);
+            controller.setLatencyThreshold(Duration.ofMillis(100));
+            controller.start();
+
+            // Deadlock: two threads that wait for the lock of the other one.
+            ReentrantLock lock1 = new ReentrantLock();
+            ReentrantLock lock2 = new ReentrantLock();
+            CountDownLatch bothLocked = new CountDownLatch(2);
+            Thread thread1 = new Thread(() -> lockBoth(lock1, lock2, bothLocked));
+            Thread thread2 = new Thread(() -> lockBoth(lock2, lock1, bothLocked));
+            thread1.start();
+            thread2.start();
+            waitForDump(controller, "deadlock");
+            thread1.interrupt();
+            thread2.interrupt();
+            thread1.join();
+            thread2.join();
+
+            // Slow requests: the 99th percentile is above 100 ms.
+            for (int i = 0; i < 200; i++) {
+                controller.recordLatency(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            for (int i = 0; i < 5; i++) {
+                controller.recordLatency(TimeUnit.MILLISECONDS.toNanos(500));
+            }
+            waitForDump(controller, "latency");
+
+            // During the cooldown, slow requests don't cause a dump. They are kept for the first check after it:
+            controller.setCooldown(Duration.ofHours(1));
+            int dumps = controller.getDumps().size();
+            for (int i = 0; i < 200; i++) {
+                controller.recordLatency(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            for (int i = 0; i < 5; i++) {
+                controller.recordLatency(TimeUnit.MILLISECONDS.toNanos(500));
+            }
+            Thread.sleep(300);
+            assertEquals(dumps, controller.getDumps().size());
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(500), controller.getLatencyP99());
+            controller.setCooldown(Duration.ZERO);
+
+            // Every garbage collection takes longer than 0 ms:
+            controller.setGcPauseThreshold(Duration.ZERO);
+            System.gc();
+            waitForDump(controller, "gc");
+            controller.setGcPauseThreshold(null);
+
+            // The dumps contain everything the JDK records by default, for example the end of the deadlocked threads:
+            Path gcDump = controller.getDumps().stream().filter(file -> file.toString().endsWith("gc.jfr"))
+                    .findFirst().get();
+            assertTrue(RecordingFile.readAllEvents(gcDump).stream()
+                    .filter(event -> event.getEventType().getName().equals("jdk.ThreadEnd"))
+                    .anyMatch(event -> thread1.getName().equals(event.getThread("eventThread").getJavaName())));
+
+            // Only the newest dumps are kept:
+            controller.setMaxDumps(2);
+            controller.dump("manual").get();
+            controller.dump("manual").get();
+            assertEquals(2, controller.getDumps().size());
+            assertTrue(controller.getDumps().stream().allMatch(file -> file.toString().endsWith("manual.jfr")));
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(2, files.count());
+            }
+        }
+    }
+
+    @Test
+    public void findingAllocationHotspots() throws InterruptedException {
+        List<List<Integer>> keep = new ArrayList<>();
+        try (AllocationSampler sampler = new AllocationSampler(5)) {
+            AllocationSampler.Report report = sampler.sample(() -> {
+                for (int i = 0; i < 10; i++) {
+                    keep.add(IntStream.range(0, 1_000_000).boxed().collect(Collectors.toList()));
+                }
+            });
+            System.out.println(report);
+
+            // Most of the bytes are Integers, allocated by boxed() in this method:
+            assertTrue(report.getSites().stream().anyMatch(site -> site.getClassName().equals("java.lang.Integer")
+                    && site.getFrame().startsWith(C_11_MissionControl.class.getName())));
+            assertTrue(report.getFlags().stream().anyMatch(flag -> flag.startsWith("java.lang.Integer")));
+        }
+
+        // Periodic reports keep coming even if some of them fail, with an exception or an error:
+        CountDownLatch fourReports = new CountDownLatch(4);
+        try (AllocationSampler sampler = new AllocationSampler(3)) {
+            sampler.start(Duration.ofMillis(50), r -> {
+                fourReports.countDown();
+                if (fourReports.getCount() == 3) {
+                    throw new IllegalStateException("log file full");
+                }
+                if (fourReports.getCount() == 2) {
+                    throw new AssertionError("report not as expected");
+                }
+            });
+            assertTrue(fourReports.await(10, TimeUnit.SECONDS));
+        }
+
+        // A failing workload doesn't leave its recording behind:
+        try (AllocationSampler sampler = new AllocationSampler(3)) {
+            sampler.sample(() -> {
+                throw new IllegalStateException("workload failed");
+            });
+            fail("the exception of the workload should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("workload failed", e.getMessage());
+        }
+        assertTrue(FlightRecorder.getFlightRecorder().getRecordings().stream()
+                .noneMatch(recording -> recording.getName().equals("allocation-sampler")));
+
+        // What's on the heap right now. The Integers of "keep" are near the top:
+        AllocationSampler.heapHistogram(10).forEach(System.out::println);
+
+        // 10,000 Strings with only three different contents, and 10,000 Integers instead of an int[]:
+        Map<String, Object> data = new HashMap<>();
+        data.put("states", IntStream.range(0, 10_000).mapToObj(i -> new String("state " + i % 3))
+                .collect(Collectors.toList()));
+        data.put("ids", IntStream.range(1000, 11_000).boxed().collect(Collectors.toList()));
+        HeapFootprint footprint = HeapFootprint.of(data);
+        System.out.println(footprint);
+
+        assertEquals(3, footprint.getDuplicateStrings().size());
+        assertEquals(10_000, footprint.getDuplicateStrings().values().stream().mapToInt(Integer::intValue).sum());
+        assertEquals(Long.valueOf(10_000), footprint.getBoxed().get(Integer.class));
+        assertEquals(160_000, footprint.getBoxedBytes());
+        // "keep" is used until here, so the histogram above still found its Integers:
+        assertEquals(1, keep.get(0).get(1).intValue());
+    }
+
+    private static void lockBoth(ReentrantLock first, ReentrantLock second, CountDownLatch bothLocked) {
+        try {
+            first.lockInterruptibly();
+            bothLocked.countDown();
+            bothLocked.await();
+            second.lockInterruptibly();
+        } catch (InterruptedException e) {
+            // that's how the deadlock ends
+        }
+    }
+
+    private static void waitForDump(FlightRecordingController controller, String reason) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10_000;
+        while (controller.getDumps().stream().noneMatch(file -> file.toString().endsWith(reason + ".jfr"))) {
+            assertTrue("No dump because of " + reason, System.currentTimeMillis() < end);
+            Thread.sleep(20);
+        }
+    }
 }